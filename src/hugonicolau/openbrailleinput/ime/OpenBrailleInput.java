@@ -25,6 +25,7 @@ import hugonicolau.openbrailleinput.touchmodel.TouchModel;
 import hugonicolau.openbrailleinput.touchmodel.VerticalComparator;
 import hugonicolau.openbrailleinput.touchmodel.TouchModel.GESTURE_TYPE;
 import hugonicolau.openbrailleinput.wordcorrection.BrailleWordCorrection;
+import hugonicolau.openbrailleinput.wordcorrection.SpeculativeCorrection;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -92,6 +93,9 @@ public class OpenBrailleInput extends InputMethodService implements OnInitListen
     // word correction
     String[] mSuggestions = null;
     private StringBuilder mWordCorrectionComposing = new StringBuilder();
+    private SpeculativeCorrection mCorrection = new SpeculativeCorrection(BrailleWordCorrection.getSharedInstance(), 5);
+    private Handler mCorrectionHandler = new Handler();
+    private int mCorrectionSequence = 0; // the latest word sent to correction
     
     // tts vars
     static public TextToSpeech mTTS = null;
@@ -580,6 +584,10 @@ public class OpenBrailleInput extends InputMethodService implements OnInitListen
     	// save centroids
     	saveCentroids();
     	
+    	// save the latest corrections for the next session
+    	if(mSharedPrefs.getBoolean(getResources().getString(R.string.prefAutoCorrect), false))
+    		BrailleWordCorrection.getSharedInstance().saveCache(getApplicationContext());
+    	
     	// save touches
     	if(mSharedPrefs.getBoolean(getResources().getString(R.string.prefLogging), true)) 
     	{
@@ -1204,6 +1212,7 @@ public class OpenBrailleInput extends InputMethodService implements OnInitListen
 	    	{
 	    		mWordCorrectionComposing.setLength(0);
 	    	}
+	    	syncCorrection();
 	    	
 	    	keyDownUp(KeyEvent.KEYCODE_DEL);
     	}
@@ -1239,6 +1248,7 @@ public class OpenBrailleInput extends InputMethodService implements OnInitListen
     	else if(c == Character.UNASSIGNED)
     	{
     		c = '';
+    		syncCorrection();
     		return;
     		// read character
     		/*if(mSharedPrefs.getBoolean(getResources().getString(R.string.prefSound), true))
@@ -1271,6 +1281,7 @@ public class OpenBrailleInput extends InputMethodService implements OnInitListen
     		mComposing.append(c);
     		mWordCorrectionComposing.append(c);
         	getCurrentInputConnection().commitText(String.valueOf(c), 1);
+        	syncCorrection();
     		
     	}
     	else
@@ -1284,26 +1295,8 @@ public class OpenBrailleInput extends InputMethodService implements OnInitListen
     			
     			if(word.length() > 0)
     			{
-	    			mSuggestions = BrailleWordCorrection.getSharedInstance().getSuggestions(word, 5);
-	    			if(mSuggestions.length > 0 && mSuggestions[0] != null && !word.equalsIgnoreCase(mSuggestions[0]))
-	    			{
-	    				// update view
-	    	    		reDrawCentrois();
-	    	    		
-	    	    		// update internal text
-	    	    		String realWord = getLastWord(mComposing);
-	    	    		mComposing.delete(mComposing.length() - realWord.length(), mComposing.length());
-	    	    		mComposing.append(mSuggestions[0]);
-	    	    		mWordCorrectionComposing.delete(mWordCorrectionComposing.length() - word.length(), mWordCorrectionComposing.length());
-	    	    		mWordCorrectionComposing.append(mSuggestions[0]);
-	    	    		
-	    	    		// update textview
-	    	    		getCurrentInputConnection().finishComposingText();
-	    	    		getCurrentInputConnection().deleteSurroundingText(realWord.length(), 0);
-	    	    		getCurrentInputConnection().setComposingText(mSuggestions[0].toLowerCase(Locale.getDefault()), 1);
-	    	    		getCurrentInputConnection().finishComposingText();
-	    	    		word = mSuggestions[0];
-	    			}
+    				// corrected in the background, the word is replaced and read again once suggestions arrive
+    				correctWord(word, getLastWord(mComposing), c != ' ' ? c + " " : String.valueOf(c));
     			}
     			else mSuggestions = null;
     		}
@@ -1347,6 +1340,83 @@ public class OpenBrailleInput extends InputMethodService implements OnInitListen
     	{
     		super.sendKeyChar(s.charAt(i));
     	}
+    	syncCorrection();
+    }
+    
+    /**
+     * Helper to correct a word that just ended without waiting for the search. Called before the
+     * separator is written; the suggestions replace the word only if they are for the latest word
+     * sent to correction and the text still ends with the word and its separator. The typed word is
+     * read at the separator, so only a replacement is read here.
+     */
+    private void correctWord(final String word, final String realWord, final String separator)
+    {
+    	final int sequence = ++mCorrectionSequence;
+    	final int start = mComposing.length() - realWord.length();
+    	final int correctionStart = mWordCorrectionComposing.length() - word.length();
+    	
+    	mCorrection.getSuggestions(getPreviousWord(mWordCorrectionComposing, correctionStart), word, 
+    			mCorrectionHandler, new SpeculativeCorrection.Callback()
+    	{
+    		@Override
+    		public void onSuggestions(String word, String[] suggestions)
+    		{
+    			// the user moved on
+    			if(sequence != mCorrectionSequence
+    					|| !endsWith(mComposing, start, realWord + separator)
+    					|| !endsWith(mWordCorrectionComposing, correctionStart, word + separator))
+    				return;
+    			
+    			mSuggestions = suggestions;
+    			if(suggestions != null && suggestions.length > 0 && suggestions[0] != null && !word.equalsIgnoreCase(suggestions[0]))
+    			{
+    				InputConnection ic = getCurrentInputConnection();
+    				if(ic == null) return;
+    				
+    				// update view
+    	    		reDrawCentrois();
+    	    		
+    	    		// update internal text
+    	    		mComposing.replace(start, start + realWord.length(), suggestions[0]);
+    	    		mWordCorrectionComposing.replace(correctionStart, correctionStart + word.length(), suggestions[0]);
+    	    		
+    	    		// update textview, the separator is written again after the suggestion
+    	    		ic.finishComposingText();
+    	    		ic.deleteSurroundingText(realWord.length() + separator.length(), 0);
+    	    		ic.setComposingText(suggestions[0].toLowerCase(Locale.getDefault()) + separator, 1);
+    	    		ic.finishComposingText();
+    	    		
+    	    		// read the word that replaced the one read at the separator
+    	    		if(mSharedPrefs.getBoolean(getResources().getString(R.string.prefSpeechWord), true))
+    	    		{
+    	    			ttsStop();
+    	    			ttsSpeak(suggestions[0], TextToSpeech.QUEUE_FLUSH);
+    	    		}
+    			}
+    		}
+    	});
+    }
+    
+    /**
+     * Helper to tell whether a message is exactly some text from a position on
+     */
+    private boolean endsWith(StringBuilder message, int start, String text)
+    {
+    	return start >= 0 && message.length() == start + text.length()
+    			&& message.indexOf(text, start) == start;
+    }
+    
+    /**
+     * Helper to correct the word being typed in the background, so its suggestions are ready when it ends
+     */
+    private void syncCorrection()
+    {
+    	if(mSharedPrefs.getBoolean(getResources().getString(R.string.prefAutoCorrect), false))
+    	{
+    		String word = getLastWord(mWordCorrectionComposing);
+    		mCorrection.update(getPreviousWord(mWordCorrectionComposing, mWordCorrectionComposing.length() - word.length()), 
+    				word);
+    	}
     }
     
     /**
@@ -1365,6 +1435,20 @@ public class OpenBrailleInput extends InputMethodService implements OnInitListen
     	return ret;
     } 
     
+    /**
+     * Helper to get the word written before a position, empty if a sentence ended after it
+     */
+    private String getPreviousWord(StringBuilder message, int end)
+    {
+    	int i = end - 1;
+    	while(i >= 0 && message.charAt(i) == ' ') { i--; }
+    	if(i < 0 || !Character.isLetter(message.charAt(i))) return "";
+    	
+    	int last = i + 1;
+    	while(i >= 0 && message.charAt(i) != ' ') { i--; }
+    	return message.substring(i + 1, last);
+    }
+    
     /**
      * Helper to delete characters until a valid one 
      */
@@ -0,0 +1,294 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+package hugonicolau.openbrailleinput.wordcorrection;
+
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.DataFormatException;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.MAFSA;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Frequencies of pairs of words, indexed by the hashes of both words in a MAFSA (see MAFSA.wordToHash). A pair is
+ * a long key, the hash of the first word in the high half, so keys are kept sorted and the words that follow a
+ * word are a range of consecutive keys.
+ *
+ * Frequencies are log counts normalized to [0, 1], quantized to 8 bits. Pairs with a word missing from the dawg
+ * are dropped, so a model only fits the dawg it was built with.
+ *
+ * Binary format (little endian), version 1:
+ *
+ * 4 bytes		: magic "BIGR"
+ * 4 bytes		: format version
+ * 4 bytes		: pair count (n)
+ * 4 bytes		: reserved
+ * n * 8 bytes	: keys, ascending
+ * n bytes		: levels
+ */
+public class BigramModel
+{
+	private static final int MAGIC = 0x52474942; // "BIGR" read as a little endian int
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	private final int mSize;
+	private final LongBuffer mKeys;
+	private final ByteBuffer mLevels;
+
+	private BigramModel(int size, LongBuffer keys, ByteBuffer levels)
+	{
+		mSize = size;
+		mKeys = keys;
+		mLevels = levels;
+	}
+
+	public int size()
+	{
+		return mSize;
+	}
+
+	/**
+	 * Returns the index of the first word that follows a word. The words that follow it are at the indexes up to
+	 * end(previous).
+	 */
+	public int start(int previous)
+	{
+		return lowerBound((long) previous << 32);
+	}
+
+	public int end(int previous)
+	{
+		return lowerBound((long) (previous + 1) << 32);
+	}
+
+	/**
+	 * Returns the hash of the second word of a pair.
+	 */
+	public int next(int index)
+	{
+		return (int) mKeys.get(index);
+	}
+
+	/**
+	 * Returns the frequency of a pair.
+	 */
+	public float frequency(int index)
+	{
+		return (mLevels.get(index) & 0xFF) / 255f;
+	}
+
+	/**
+	 * Returns the index of a pair, or -1 if the words aren't a known pair.
+	 */
+	public int indexOf(int previous, int next)
+	{
+		long key = key(previous, next);
+		int index = lowerBound(key);
+		return index < mSize && mKeys.get(index) == key ? index : -1;
+	}
+
+	private int lowerBound(long key)
+	{
+		int low = 0;
+		int high = mSize;
+		while(low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if(mKeys.get(middle) < key)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private static long key(int previous, int next)
+	{
+		return (long) previous << 32 | (next & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Reads a model from the pairs listed in the assets, kept in memory. The stream remains open.
+	 *
+	 * @param is the stream with the pairs, a line each with its rank, count and first_second words, tab separated
+	 * @param dawg the dawg the words are hashed with
+	 * @return the model
+	 * @throws IOException if reading from the stream causes an IOException
+	 */
+	public static BigramModel load(InputStream is, MAFSA dawg) throws IOException
+	{
+		return read(ByteBuffer.wrap(encode(is, dawg)));
+	}
+
+	/**
+	 * Maps a model stored in the binary format. Pairs are read through the mapping, nothing is copied.
+	 *
+	 * @param file the file written by {@link #convert(InputStream, MAFSA, File)}
+	 * @return the model
+	 * @throws DataFormatException if the file isn't a bigram model of a supported version
+	 * @throws IOException if mapping the file causes an IOException
+	 */
+	public static BigramModel map(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Converts the pairs listed in the assets to a binary file that can then be mapped.
+	 *
+	 * @param is the stream with the pairs, a line each with its rank, count and first_second words, tab separated
+	 * @param dawg the dawg the words are hashed with
+	 * @param file the binary file to create
+	 * @throws IOException if reading the pairs or writing the file causes an IOException
+	 */
+	public static void convert(InputStream is, MAFSA dawg, File file) throws IOException
+	{
+		byte[] encoded = encode(is, dawg);
+
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(temp), 8 * 1024);
+		try
+		{
+			os.write(encoded);
+			os.flush();
+		}
+		finally
+		{
+			os.close();
+		}
+
+		if(!temp.renameTo(file))
+		{
+			temp.delete();
+			throw new IOException("Couldn't write " + file);
+		}
+	}
+
+	private static byte[] encode(InputStream is, MAFSA dawg) throws IOException
+	{
+		long[] keys = new long[1024];
+		int[] counts = new int[1024];
+		int n = 0;
+		int maxCount = 1;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"), 8 * 1024);
+		String line;
+		while((line = reader.readLine()) != null)
+		{
+			String[] fields = line.split("\t");
+			if(fields.length != 3)
+				continue;
+			int separator = fields[2].indexOf('_');
+			if(separator <= 0)
+				continue;
+
+			int previous = dawg.wordToHash(fields[2].substring(0, separator).toUpperCase(Locale.ENGLISH));
+			int next = dawg.wordToHash(fields[2].substring(separator + 1).toUpperCase(Locale.ENGLISH));
+			if(previous < 0 || next < 0)
+				continue;
+
+			int count;
+			try
+			{
+				count = Integer.parseInt(fields[1]);
+			}
+			catch(NumberFormatException nfe)
+			{
+				throw new DataFormatException("Bad file.  Not valid for loading bigrams", nfe);
+			}
+
+			if(n == keys.length)
+			{
+				keys = Arrays.copyOf(keys, n * 2);
+				counts = Arrays.copyOf(counts, n * 2);
+			}
+			keys[n] = key(previous, next);
+			counts[n] = count;
+			maxCount = Math.max(maxCount, count);
+			n++;
+		}
+
+		// sorted by key, with the counts along
+		long[] sorted = Arrays.copyOf(keys, n);
+		Arrays.sort(sorted);
+		int[] levels = new int[n];
+		for(int i = 0; i < n; i++)
+		{
+			// spellings that differ only in case are the same pair
+			int index = Arrays.binarySearch(sorted, keys[i]);
+			while(index > 0 && sorted[index - 1] == keys[i])
+				index--;
+			int level = (int) Math.round(255 * Math.log(1 + counts[i]) / Math.log(1 + maxCount));
+			levels[index] = Math.max(levels[index], level);
+		}
+		int size = 0;
+		for(int i = 0; i < n; i++)
+		{
+			if(size > 0 && sorted[size - 1] == sorted[i])
+				continue;
+			sorted[size] = sorted[i];
+			levels[size] = levels[i];
+			size++;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 9 * size);
+		buffer.order(BYTE_ORDER);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(size);
+		buffer.putInt(0);
+		for(int i = 0; i < size; i++)
+			buffer.putLong(sorted[i]);
+		for(int i = 0; i < size; i++)
+			buffer.put((byte) levels[i]);
+		return buffer.array();
+	}
+
+	private static BigramModel read(ByteBuffer buffer) throws DataFormatException
+	{
+		buffer.order(BYTE_ORDER);
+
+		if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new DataFormatException("Bad file.  Not a bigram model");
+		if(buffer.getInt(4) != VERSION)
+			throw new DataFormatException("Unsupported bigram model version " + buffer.getInt(4));
+
+		int n = buffer.getInt(8);
+		if(buffer.capacity() < HEADER_SIZE + 9L * n)
+			throw new DataFormatException("Bad file.  Truncated bigram model");
+
+		LongBuffer keys = section(buffer, HEADER_SIZE, 8 * n).order(BYTE_ORDER).asLongBuffer();
+		ByteBuffer levels = section(buffer, HEADER_SIZE + 8 * n, n);
+		return new BigramModel(n, keys, levels);
+	}
+
+	private static ByteBuffer section(ByteBuffer buffer, int offset, int length)
+	{
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(offset);
+		duplicate.limit(offset + length);
+		return duplicate.slice();
+	}
+}
@@ -18,29 +18,75 @@ package hugonicolau.openbrailleinput.wordcorrection;
 
 import hugonicolau.openbrailleinput.R;
 import hugonicolau.openbrailleinput.ime.OpenBrailleInput;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.DataFormatException;
 import hugonicolau.openbrailleinput.wordcorrection.mafsa.MAFSA;
-import hugonicolau.openbrailleinput.wordcorrection.mafsa.MAFSA.SuggestionResult;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.MSDFrontier;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.MSDQuery;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.SuggestionCollector;
 
-import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.StreamCorruptedException;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.io.IOUtils;
 
 import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.util.Log;
 
 public class BrailleWordCorrection {
     
 	private static BrailleWordCorrection mSharedInstance = null;
 	
-	private MAFSA mMAFSA = null;
-	private float[] mFrequencies;
+	// the live model, replaced as a whole when a load completes
+	private volatile Model mModel = null;
 	public String Language = "";  
 	
+	// loads run one at a time in the background, a newer load supersedes the previous ones
+	private final ExecutorService mLoader = Executors.newSingleThreadExecutor(new ThreadFactory() 
+	{
+		@Override
+		public Thread newThread(Runnable r) 
+		{
+			Thread thread = new Thread(r, "WordCorrectionLoader");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+	private Future<?> mPendingLoad = null;
+	private int mGeneration = 0;
+	
+	// context of the latest load, to load the parts of the model read on demand
+	private volatile Context mContext = null;
+	
+	// long words are searched on several cores, where there are more than two
+	private static final int PARALLEL_MIN_CORES = 3;
+	private static final int PARALLEL_MIN_LENGTH = 6;
+	private final int mSearchWorkers = Runtime.getRuntime().availableProcessors();
+	private final ExecutorService mSearchPool = mSearchWorkers < PARALLEL_MIN_CORES ? null : 
+		Executors.newFixedThreadPool(mSearchWorkers, new ThreadFactory() 
+	{
+		@Override
+		public Thread newThread(Runnable r) 
+		{
+			Thread thread = new Thread(r, "WordCorrectionSearch");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private volatile boolean mParallelSearch = true;
+	
+	// suggestions for the latest words, so repeated slips aren't searched again
+	private static final int CACHE_SIZE = 256;
+	private static final String CACHE_FILE = "suggestions.cache";
+	private final SuggestionCache mCache = new SuggestionCache(CACHE_SIZE);
+	
 	protected BrailleWordCorrection() 
 	{ 
 	}
@@ -68,241 +114,843 @@ public class BrailleWordCorrection {
 	float iw = (float) 0.41078573;
 	float ow = (float) 1.8156104;
 	
-	// distance used to calculate similarity between words
-	Distance mDistance = ChordDistances.Damerau;
+	// weight of the frequency of the word after the previous word. Unlike the weights above it wasn't derived
+	// from pilot data, so bigrams are off (0) until it is; half of b, 0.17579436, is only a starting point
+	volatile float c = 0;
+	
+	/*
+	 * Everything a search needs for one language. Models aren't modified once published, so a search keeps
+	 * using the one it started with while another is loading. Only the bigrams are set later, the first time a
+	 * word is corrected after another.
+	 */
+	private static class Model
+	{
+		final String language;
+		final MAFSA dawg;
+		final FrequencyTable frequencies;
+		
+		// asset listing the pairs of words, null if the language has none
+		final String bigramsAsset;
+		volatile BigramModel bigrams = null;
+		boolean bigramsRequested = false;
+		
+		// the words that follow the latest previous word, decoded once for every keystroke after it
+		volatile Followers followers = null;
+		
+		// distance used to calculate similarity between words
+		final Distance distance;
+		
+		// null on devices with too few cores
+		final ParallelSearch parallel;
+		
+		Model(String language, MAFSA dawg, FrequencyTable frequencies, String bigramsAsset, Distance distance, 
+				ExecutorService searchPool, int searchWorkers)
+		{
+			this.language = language;
+			this.dawg = dawg;
+			this.frequencies = frequencies;
+			this.bigramsAsset = bigramsAsset;
+			this.distance = distance;
+			this.parallel = searchPool == null ? null : new ParallelSearch(dawg, searchPool, searchWorkers);
+		}
+	}
+	
+	// how the dawg is searched: every word within maxCost, or only the best ones, best first
+	public static final int SEARCH_EXHAUSTIVE = 0;
+	public static final int SEARCH_BEST_FIRST = 1;
+	private volatile int mSearchMode = SEARCH_BEST_FIRST;
+	
+	public void setSearchMode(int searchMode)
+	{
+		mSearchMode = searchMode;
+	}
+	
+	public int getSearchMode()
+	{
+		return mSearchMode;
+	}
+	
+	/**
+	 * Whether long words are searched on several threads, on devices with more than two cores. Split searches
+	 * find every word within maxCost, whatever the search mode.
+	 */
+	public void setParallelSearch(boolean parallelSearch)
+	{
+		mParallelSearch = parallelSearch;
+	}
+	
+	public boolean getParallelSearch()
+	{
+		return mParallelSearch;
+	}
+	
+	/**
+	 * Weight of the frequency of a word after the previous word, 0 to rank words without the previous word.
+	 * Suggestions kept for the old weight are forgotten.
+	 */
+	public void setBigramWeight(float bigramWeight)
+	{
+		c = bigramWeight;
+		mCache.clear();
+	}
+	
+	public float getBigramWeight()
+	{
+		return c;
+	}
+	
+	/**
+	 * The suggestions kept for the latest words, with its hit and miss counts.
+	 */
+	public SuggestionCache getCache()
+	{
+		return mCache;
+	}
 	
 	public String[] getSuggestions(String word, int suggestionsLimit) 
     {
-    	if(word == null || mMAFSA == null) {return null;}
-    	boolean exists = false;
+		return getSuggestions(null, word, suggestionsLimit, MAFSA.DEFAULT_SEARCH_BUDGET);
+    }
+	
+	public String[] getSuggestions(String word, int suggestionsLimit, long searchBudget) 
+    {
+		return getSuggestions(null, word, suggestionsLimit, searchBudget);
+    }
+	
+	/**
+	 * Returns the best corrections for a word, found within a time budget. When the budget runs out the
+	 * suggestions are the best ones found so far. Words that often follow the previous word rank higher.
+	 * 
+	 * @param previousWord the word typed before, null or empty if there is none
+	 * @param word the typed word
+	 * @param suggestionsLimit maximum number of suggestions
+	 * @param searchBudget time allowed to search, in nanoseconds
+	 * @return the suggestions, best first
+	 */
+	public String[] getSuggestions(String previousWord, String word, int suggestionsLimit, long searchBudget) 
+    {
+		long deadline = System.nanoTime() + searchBudget;
+		
+    	if(word == null) {return null;}
+    	
+    	// no corrections until a model is loaded
+    	Model model = mModel;
+    	if(model == null) {return new String[0];}
+    	MAFSA dawg = model.dawg;
     	
     	// get suggestions
     	//long startTime = System.currentTimeMillis();
-    	int maxCost = 2;
-    	if(word.length() > 5)
-    	{
-    		maxCost = 3;
-        	//iw = (float) 1.5;
-        	//ow = (float) 2;
-    	}
+    	int maxCost = maxCost(word.length());
+    	
+    	BigramModel bigrams = bigrams(model);
+    	int context = context(model, bigrams, previousWord);
+    	String contextWord = context < 0 ? "" : previousWord.toUpperCase();
+    	
+    	String[] cached = mCache.get(model.language, contextWord, word, maxCost, suggestionsLimit);
+    	if(cached != null) {return cached;}
     	
     	//println("Get suggestions for[" + word + "]");
     	
-    	Set<SuggestionResult> results = mMAFSA.searchMSD(word, maxCost, iw, sw, ow, mDistance);
+    	// words are scored as they are found, and only the best ones are kept
+    	SuggestionHeap best = new SuggestionHeap(suggestionsLimit);
+    	boolean complete;
+    	boolean exists;
+    	if(mParallelSearch && model.parallel != null && word.length() >= PARALLEL_MIN_LENGTH)
+    	{
+    		// the followers of the previous word are scored first, as the search leaves them out
+    		Scorer followers = new Scorer(model, word, maxCost, best, bigrams, context);
+    		boolean followed = followers.collectFollowers(deadline);
+    		
+    		// each worker scores into its own heap, merged once they are all done
+    		Scorer[] scorers = new Scorer[model.parallel.workers()];
+    		for(int i = 0; i < scorers.length; i++)
+    			scorers[i] = new Scorer(model, word, maxCost, new SuggestionHeap(suggestionsLimit), bigrams, context);
+    		complete = model.parallel.search(word, maxCost, iw, sw, ow, model.distance, deadline, scorers) 
+    				&& followed;
+    		exists = followers.exists;
+    		for(Scorer scorer : scorers)
+    		{
+    			best.addAll(scorer.best);
+    			exists |= scorer.exists;
+    		}
+    	}
+    	else
+    	{
+    		Scorer scorer = new Scorer(model, word, maxCost, best, bigrams, context);
+    		boolean followed = scorer.collectFollowers(deadline);
+    		if(mSearchMode == SEARCH_BEST_FIRST)
+    			complete = dawg.searchBestMSD(word, maxCost, iw, sw, ow, model.distance, model.frequencies, a, b, 
+    					suggestionsLimit, deadline, scorer);
+    		else
+    			complete = dawg.searchMSD(word, maxCost, iw, sw, ow, model.distance, deadline, scorer);
+    		complete &= followed;
+    		exists = scorer.exists;
+    	}
+    	if(!complete)
+    		Log.v(OpenBrailleInput.TAG, "Search for[" + word + "] ran out of time");
     	
 		//long stopTime = System.currentTimeMillis();
 		//println("Search time [" + (stopTime - startTime) + "] ms");
-    	
-		// calculate final score for each word
-		//startTime = System.currentTimeMillis();
-		for(SuggestionResult result : results)
+		
+		String[] suggestions = finish(model, word, maxCost, best, exists);
+		
+		// a search cut short may find more next time
+		if(complete) cache(model, contextWord, word, maxCost, suggestionsLimit, suggestions);
+		return suggestions;
+    }
+	
+	/*
+	 * Words longer than 5 characters are allowed more errors
+	 */
+	private static int maxCost(int length)
+	{
+		int maxCost = 2;
+		if(length > 5)
 		{
-			if(result.suggestion.equalsIgnoreCase(word))
+			maxCost = 3;
+			//iw = (float) 1.5;
+			//ow = (float) 2;
+		}
+		return maxCost;
+	}
+	
+	// shortest word split by the segmenter, and the time it is allowed, in nanoseconds
+	private static final int SEGMENT_MIN_LENGTH = 4;
+	private static final long SEGMENT_BUDGET = 20 * 1000000L;
+	
+	// how much lower than the best word found a split must score to be suggested at all
+	private static final float SEGMENT_MARGIN = 0.05f;
+	
+	/*
+	 * Keeps the suggestions of a model that is still live
+	 */
+	private void cache(Model model, String contextWord, String word, int maxCost, int suggestionsLimit, 
+			String[] suggestions)
+	{
+		if(model == mModel) mCache.put(model.language, contextWord, word, maxCost, suggestionsLimit, suggestions);
+	}
+	
+	/*
+	 * Returns the hash of the previous word if some words are known to follow it, -1 otherwise
+	 */
+	private static int context(Model model, BigramModel bigrams, String previousWord)
+	{
+		if(bigrams == null || previousWord == null || previousWord.length() == 0) return -1;
+		
+		int hash = model.dawg.wordToHash(previousWord);
+		if(hash < 0 || bigrams.start(hash) == bigrams.end(hash)) return -1;
+		return hash;
+	}
+	
+	/*
+	 * Returns the bigrams of a model, null until they are loaded, which the first call starts, or while they
+	 * have no weight
+	 */
+	private BigramModel bigrams(Model model)
+	{
+		if(c == 0) return null;
+		
+		BigramModel bigrams = model.bigrams;
+		if(bigrams == null && model.bigramsAsset != null) requestBigrams(model);
+		return bigrams;
+	}
+	
+	/*
+	 * Adds the typed word, if it wasn't found, and its splits in two words to the words found by a search
+	 */
+	private String[] finish(Model model, String word, int maxCost, SuggestionHeap best, boolean exists)
+	{
+		MAFSA dawg = model.dawg;
+		
+		// one walk from each position finds every word in the typed word: its prefixes, the whole word and
+		// its suffixes, which the splits below and the segmenter share
+		int length = word.length();
+		char[] letters = new char[length];
+		for(int i = 0; i < length; i++)
+			letters[i] = Character.toUpperCase(word.charAt(i));
+		int[][] walks = WordSegmenter.walk(dawg, letters);
+		if(!exists && length > 0 && walks[0][length - 1] >= 0) best.offer(-2, word);
+		
+		// splits from the segmenter are measured against the words, not against the splits below
+		float threshold = best.bestScore() - SEGMENT_MARGIN;
+		
+		// blank space filter, a split point is where a word ends and another one runs to the end
+		for(int i = 1; i < length; i++)
+		{
+			int prefix = walks[0][i - 1];
+			int suffix = walks[i][length - 1];
+			if(prefix < 0 || suffix < 0) continue;
+			
+			float freq1 = model.frequencies.get(prefix);
+			float freq2 = model.frequencies.get(suffix);
+			
+			float score = a * (ow/maxCost) - b * ((freq1 + freq2) / 2);
+			score *= 1.5; // penalize for being two words
+			best.offer(score, word.substring(0, i) + " " + word.substring(i));
+		}
+		
+		// runs of more words, and splits with slips in them; exact two word splits were offered above. A split
+		// scores at least as if all its words were as frequent as can be, and one with slips as if it had the
+		// cheapest one, so the segmenter, or its search for slips, only runs if that can beat the threshold
+		float exactBound = 1.5f * (a * (ow / maxCost) - b);
+		float slipBound = 1.5f * (a * ((ow + Math.min(Math.min(iw, sw), Math.min(ow, 1))) / maxCost) - b);
+		if(length >= SEGMENT_MIN_LENGTH && exactBound < threshold)
+		{
+			long deadline = System.nanoTime() + (slipBound < threshold ? SEGMENT_BUDGET : 0);
+			WordSegmenter segmenter = new WordSegmenter(dawg, model.frequencies, model.distance, iw, sw, ow);
+			for(WordSegmenter.Segmentation segmentation : segmenter.segment(letters, walks, maxCost, a, b, deadline))
 			{
-				// if transcribed word exists, then it reveives the min score
-				result.msdScore = -2;
-				exists = true;
+				int words = segmentation.words.length;
+				if(words == 2 && segmentation.exact) continue;
+				
+				// the slips of all the words count against maxCost, as those of a single word do
+				if(segmentation.msd > maxCost) continue;
+				
+				// the least frequent word stands for the split, so common short words don't carry rare pieces
+				float score = a * ((ow + segmentation.msd) / maxCost) - b * segmentation.frequency;
+				score *= 1.5;
+				if(score < threshold) best.offer(score, segmentation.toString());
 			}
-			else
+		}
+		
+		//if(best.size() == 0) println("Empty results for word[" + word + "]");
+    	return best.toSortedArray();
+	}
+	
+	// nodes a session keeps open before it falls back to searching the whole word
+	private static final int SESSION_MAX_NODES = 1 << 15;
+	
+	public Session newSession()
+	{
+		return new Session();
+	}
+	
+	/**
+	 * Suggestions for a word while it is typed. The search follows the word a character at a time, so once the
+	 * word is done its suggestions only need scoring. A session follows one word at a time, from one thread.
+	 */
+	public class Session
+	{
+		private Model mSessionModel = null;
+		private MSDFrontier mFrontier = null;
+		
+		/**
+		 * Follows the word being typed: the search drops the characters the word no longer ends with and adds
+		 * the new ones.
+		 */
+		public void sync(String word)
+		{
+			Model model = mModel;
+			if(model != mSessionModel)
 			{
-				result.msdScore = a * (result.msdScore/maxCost) - b * getFrequency(result.suggestion);
+				// another language, or none yet
+				mSessionModel = model;
+				mFrontier = model == null ? null : 
+					new MSDFrontier(model.dawg, iw, sw, ow, model.distance, SESSION_MAX_NODES);
 			}
+			if(mFrontier == null) return;
+			
+			int common = 0;
+			while(common < word.length() && common < mFrontier.length() 
+					&& Character.toUpperCase(word.charAt(common)) == mFrontier.charAt(common))
+				common++;
+			
+			// a new word starts from scratch, an edited one from the characters it kept
+			if(common == 0)
+				mFrontier.clear();
+			while(mFrontier.length() > common)
+				mFrontier.removeLast();
+			
+			for(int i = mFrontier.length(); i < word.length(); i++)
+				mFrontier.append(word.charAt(i), maxCost(i + 1));
+		}
+		
+		public String[] getSuggestions(String word, int suggestionsLimit)
+		{
+			return getSuggestions(null, word, suggestionsLimit);
 		}
 		
-		if(!exists && mMAFSA.contains(word)) results.add(mMAFSA.new SuggestionResult(word, -2));
+		/**
+		 * Returns the best corrections for the word, as BrailleWordCorrection.getSuggestions does.
+		 */
+		public String[] getSuggestions(String previousWord, String word, int suggestionsLimit)
+		{
+			if(word == null) {return null;}
+			
+			sync(word);
+			Model model = mSessionModel;
+			if(mFrontier == null || mFrontier.overflowed() || model != mModel)
+				return BrailleWordCorrection.this.getSuggestions(previousWord, word, suggestionsLimit, 
+						MAFSA.DEFAULT_SEARCH_BUDGET);
+			
+			int maxCost = maxCost(word.length());
+			BigramModel bigrams = bigrams(model);
+			int context = context(model, bigrams, previousWord);
+			String contextWord = context < 0 ? "" : previousWord.toUpperCase();
+			
+			String[] cached = mCache.get(model.language, contextWord, word, maxCost, suggestionsLimit);
+			if(cached != null) {return cached;}
+			
+			SuggestionHeap best = new SuggestionHeap(suggestionsLimit);
+			Scorer scorer = new Scorer(model, word, maxCost, best, bigrams, context);
+			boolean complete = scorer.collectFollowers(System.nanoTime() + MAFSA.DEFAULT_SEARCH_BUDGET);
+			mFrontier.collect(maxCost, scorer);
+			String[] suggestions = finish(model, word, maxCost, best, scorer.exists);
+			if(complete) cache(model, contextWord, word, maxCost, suggestionsLimit, suggestions);
+			return suggestions;
+		}
+	}
+	
+	// the clock is read once every DEADLINE_CHECK_INTERVAL followers scored
+	private static final int DEADLINE_CHECK_INTERVAL = 64;
+	
+	/*
+	 * The words that follow a previous word, most frequent pair first, spelled as in the dawg
+	 */
+	private static class Followers
+	{
+		final int context;
+		final String[] words;
+		final int[] hashes;
+		final float[] frequencies;
 		
-		// blank space filter
-		for(int i = 1; i < word.length(); i++)
+		Followers(int context, BigramModel bigrams, MAFSA dawg)
 		{
-			String word1 = word.substring(0, i);
-			String word2 = word.substring(i);
-			if(mMAFSA.contains(word1) && mMAFSA.contains(word2))
+			this.context = context;
+			int start = bigrams.start(context);
+			int count = bigrams.end(context) - start;
+			
+			// counting sort by the 8 bit levels of the pairs, highest first
+			int[] offsets = new int[257];
+			for(int i = 0; i < count; i++)
+				offsets[256 - Math.round(bigrams.frequency(start + i) * 255)]++;
+			for(int level = 1; level <= 256; level++)
+				offsets[level] += offsets[level - 1];
+			int[] order = new int[count];
+			for(int i = 0; i < count; i++)
+				order[offsets[255 - Math.round(bigrams.frequency(start + i) * 255)]++] = start + i;
+			
+			String[] words = new String[count];
+			int[] hashes = new int[count];
+			float[] frequencies = new float[count];
+			int size = 0;
+			for(int index : order)
 			{
-				SuggestionResult res = mMAFSA.new SuggestionResult(word1 + " " + word2, ow);
+				String word = dawg.hashToWord(bigrams.next(index));
+				if(word == null) continue;
 				
-				float freq1 = getFrequency(word1);
-				float freq2 = getFrequency(word2);
-				
-				res.msdScore = a * (res.msdScore/maxCost) - b * ((freq1 + freq2) / 2);
-				res.msdScore *= 1.5; // penalize for being two words
-				results.add(res);
+				words[size] = word;
+				hashes[size] = bigrams.next(index);
+				frequencies[size] = bigrams.frequency(index);
+				size++;
 			}
+			this.words = Arrays.copyOf(words, size);
+			this.hashes = Arrays.copyOf(hashes, size);
+			this.frequencies = Arrays.copyOf(frequencies, size);
 		}
+	}
+	
+	/*
+	 * Returns the words that follow a previous word, decoding them unless they were for the latest one
+	 */
+	private static Followers followers(Model model, BigramModel bigrams, int context)
+	{
+		Followers followers = model.followers;
+		if(followers == null || followers.context != context)
+		{
+			followers = new Followers(context, bigrams, model.dawg);
+			model.followers = followers;
+		}
+		return followers;
+	}
+	
+	/*
+	 * Scores the words found by a search, keeping the best ones. With a previous word, the words known to follow
+	 * it are scored by collectFollowers with their bigram frequency, and skipped when a search finds them: a
+	 * search only ranks words without a bigram, so a follower it cut off is still scored.
+	 */
+	private class Scorer implements SuggestionCollector
+	{
+		private final Model model;
+		private final String word;
+		private final int maxCost;
+		private final SuggestionHeap best;
 		
-		//stopTime = System.currentTimeMillis();
-		//println("Scoring time [" + (stopTime - startTime) + "] ms");
+		private final BigramModel bigrams;
 		
-		SuggestionResult[] resultsArray = results.toArray(new SuggestionResult[results.size()]);
+		// the hash of the previous word, -1 without bigrams
+		private final int context;
 		
-		// sort 
-		//startTime = System.currentTimeMillis();
-		Quicksort sorter = new Quicksort();
-		sorter.sort(resultsArray);
-		//stopTime = System.currentTimeMillis();
-		//println("Sort time [" + (stopTime - startTime) + "] ms");
+		// whether the transcribed word was found
+		boolean exists = false;
 		
-		//if(results.size() == 0) println("Empty results for word[" + word + "]");
-    	return MAFSA.extractWords(resultsArray, suggestionsLimit);
-    }
+		Scorer(Model model, String word, int maxCost, SuggestionHeap best, BigramModel bigrams, int context)
+		{
+			this.model = model;
+			this.word = word;
+			this.maxCost = maxCost;
+			this.best = best;
+			this.bigrams = bigrams;
+			this.context = context;
+		}
+		
+		@Override
+		public void collect(char[] found, int length, float msd, int hash)
+		{
+			if(context >= 0 && bigrams.indexOf(context, hash) >= 0) return;
+			score(found, length, msd, hash, 0);
+		}
+		
+		/*
+		 * Scores the words within maxCost that follow the previous word, the most frequent pairs first, returning
+		 * false if the deadline stopped it
+		 */
+		boolean collectFollowers(long deadline)
+		{
+			if(context < 0) return true;
+			
+			Followers followers = followers(model, bigrams, context);
+			MSDQuery query = new MSDQuery(word, iw, sw, ow, model.distance);
+			for(int i = 0; i < followers.words.length; i++)
+			{
+				if((i & (DEADLINE_CHECK_INTERVAL - 1)) == DEADLINE_CHECK_INTERVAL - 1 
+						&& System.nanoTime() - deadline >= 0)
+					return false;
+				
+				String follower = followers.words[i];
+				float msd = query.msd(follower, maxCost);
+				if(msd <= maxCost) 
+					score(follower.toCharArray(), follower.length(), msd, followers.hashes[i], followers.frequencies[i]);
+			}
+			return true;
+		}
+		
+		private void score(char[] found, int length, float msd, int hash, float bigram)
+		{
+			float score;
+			if(equalsIgnoreCase(word, found, length))
+			{
+				// if transcribed word exists, then it reveives the min score
+				score = -2;
+				exists = true;
+			}
+			else
+			{
+				score = a * (msd/maxCost) - b * model.frequencies.get(hash) - c * bigram;
+			}
+			
+			// only suggestions good enough to be kept turn into a String
+			if(best.accepts(score)) best.offer(score, new String(found, 0, length));
+		}
+	}
 	
-	/* UTILS */
-    private float getFrequency(String word)
-    {        	
-    	int hash = mMAFSA.wordToHash(word);
-    	//println("Word[" + word + "] Hash[" + hash + "] Freq[" + mFrequencies[hash] + "]");
-    	return mFrequencies[hash];
-    }
+	private static boolean equalsIgnoreCase(String s, char[] word, int length)
+	{
+		if(s.length() != length) return false;
+		for(int i = 0; i < length; i++)
+		{
+			char c1 = s.charAt(i);
+			char c2 = word[i];
+			if(c1 != c2 && Character.toUpperCase(c1) != Character.toUpperCase(c2) 
+					&& Character.toLowerCase(c1) != Character.toLowerCase(c2))
+				return false;
+		}
+		return true;
+	}
 	
 	/*
      * LOADING METHODS 
      */
-	public void load(Context context, String locale)
+	/**
+	 * Loads the dictionary of a language in the background. Until it is loaded there are no suggestions, and a
+	 * load still in progress for another language is cancelled.
+	 * 
+	 * @param context context used to read the dictionary resources
+	 * @param locale "0" for english, "1" for portuguese
+	 * @return the pending load, done once the new model is live or failed to load
+	 */
+	public synchronized Future<?> load(final Context context, final String locale)
     {
-		// load MA-FSA
-     	InputStream is = null;
+		if(mPendingLoad != null) mPendingLoad.cancel(true);
+		
+		final int generation = ++mGeneration;
+		mModel = null;
+		Language = locale;
+		mCache.clear();
+		
+		mPendingLoad = mLoader.submit(new Runnable() 
+		{
+			@Override
+			public void run() 
+			{
+				publish(generation, context, loadModel(context, locale));
+			}
+		});
+		return mPendingLoad;
+    }
+	
+	public boolean isReady()
+	{
+		return mModel != null;
+	}
+	
+	private synchronized void publish(int generation, Context context, Model model)
+	{
+		// a load requested meanwhile wins, even if this one finished first
+		if(generation != mGeneration || model == null) return;
+		
+		mContext = context;
+		restoreCache(context, model.language);
+		mModel = model;
+	}
+	
+	private Model loadModel(Context context, String locale)
+	{
+		MAFSA dawg;
+		FrequencyTable frequencies;
+		String bigramsAsset = null;
+		Distance distance;
+		
      	try 
      	{
      		if(locale.equalsIgnoreCase("0"))
  	    	{
  	    		// english
- 	    		is = context.getResources().openRawResource(R.raw.android_en);
- 	    		mDistance = ChordDistances.DamerauEN;
+ 	    		dawg = loadDawg(context, R.raw.android_en, "android_en");
+ 	    		frequencies = loadFrequencies(context, R.raw.freq_en, "freq_en");
+ 	    		bigramsAsset = "ngrams/EN_BIGRAM_FREQ.txt";
+ 	    		distance = ChordDistances.DamerauEN;
  	    	}
  	    	else if(locale.equalsIgnoreCase("1"))
  	    	{
  	    		// portuguese
- 	    		is = context.getResources().openRawResource(R.raw.android_pt);
- 	    		mDistance = ChordDistances.DamerauPT;
+ 	    		dawg = loadDawg(context, R.raw.android_pt, "android_pt");
+ 	    		frequencies = loadFrequencies(context, R.raw.freq_pt, "freq_pt");
+ 	    		distance = ChordDistances.DamerauPT;
  	    	}
  	    	else
  	    	{
  	    		throw new IOException("Invalid locale");
  	    	}
-         	
-     		mMAFSA = MAFSA.load(is);
- 			
  		}
  		catch (IOException ioe) 
  		{
- 			// handle this exception
- 			Log.v(OpenBrailleInput.TAG, "Couldn't load dawg" + ioe.getMessage());
- 		}
- 		finally 
- 		{
- 			IOUtils.closeQuietly(is);
+ 			// also thrown when a newer load interrupts this one
+ 			Log.v(OpenBrailleInput.TAG, "Couldn't load word correction" + ioe.getMessage());
+ 			return null;
  		}
      	
-     	// load frequencies
-     	is = null;
-     	try 
-     	{
-     		if(locale.equalsIgnoreCase("0"))
- 	    	{
-     			// english
- 	    		is = context.getResources().openRawResource(R.raw.freq_en);
- 	    	}
- 	    	else if(locale.equalsIgnoreCase("1"))
- 	    	{
- 	    		// portuguese
- 	    		is = context.getResources().openRawResource(R.raw.freq_pt);
- 	    	}
- 	    	else
- 	    	{
- 	    		throw new IOException("Invalid locale");
- 	    	}
-     		
-     		mFrequencies = loadFrequencies(is);
-         	
-         	if(mFrequencies == null) Log.v(OpenBrailleInput.TAG, "Couldn't load frequencies");
- 			
- 		}
- 		catch (IOException ioe) 
- 		{
- 			// handle this exception
- 			Log.v(OpenBrailleInput.TAG, "Couldn't load frequencies" + ioe.getMessage());
- 		}
- 		finally 
- 		{
- 			IOUtils.closeQuietly(is);
- 		}
-     	
-     	Language = locale;
+     	return new Model(locale, dawg, frequencies, bigramsAsset, distance, mSearchPool, mSearchWorkers);
      }
      
-     private float[] loadFrequencies(InputStream is) throws StreamCorruptedException, IOException
+     /*
+      * Bigrams are loaded in the background, after any pending load
+      */
+     private synchronized void requestBigrams(final Model model)
      {
-     	BufferedInputStream bis = new BufferedInputStream (is, 8 * 1024);
- 	    ObjectInputStream ois = new ObjectInputStream (bis);
-
- 	    float[] floats = null;
- 	
- 	    try 
- 	    {
- 	    	floats = (float[]) ois.readObject ();
- 		} 
- 	    catch (ClassNotFoundException e) {
- 			e.printStackTrace();
- 		}
- 	    
- 	    return floats;
+    	 if(model.bigramsRequested) return;
+    	 model.bigramsRequested = true;
+    	 
+    	 final Context context = mContext;
+    	 mLoader.submit(new Runnable() 
+    	 {
+    		 @Override
+    		 public void run() 
+    		 {
+    			 try
+    			 {
+    				 model.bigrams = loadBigrams(context, model);
+    			 }
+    			 catch(IOException ioe)
+    			 {
+    				 Log.v(OpenBrailleInput.TAG, "Couldn't load bigrams" + ioe.getMessage());
+    			 }
+    		 }
+    	 });
+     }
+     
+     /*
+      * Bigrams are converted and mapped like the dawg, from the asset listing them.
+      */
+     private BigramModel loadBigrams(Context context, Model model) throws IOException
+     {
+    	 File file = new File(context.getFilesDir(), "bigrams_" + model.language + ".bigr");
+    	 
+    	 if(file.exists() && file.lastModified() >= getLastUpdateTime(context))
+    	 {
+    		 try
+    		 {
+    			 return BigramModel.map(file);
+    		 }
+    		 catch(DataFormatException dfe)
+    		 {
+    			 Log.v(OpenBrailleInput.TAG, "Converting outdated " + file.getName());
+    		 }
+    	 }
+    	 
+    	 InputStream is = context.getAssets().open(model.bigramsAsset);
+    	 try
+    	 {
+    		 BigramModel.convert(is, model.dawg, file);
+    	 }
+    	 catch(IOException ioe)
+    	 {
+    		 // no room to convert, keep the bigrams in memory
+    		 Log.v(OpenBrailleInput.TAG, "Couldn't convert bigrams" + ioe.getMessage());
+    		 IOUtils.closeQuietly(is);
+    		 is = context.getAssets().open(model.bigramsAsset);
+    		 return BigramModel.load(is, model.dawg);
+    	 }
+    	 finally
+    	 {
+    		 IOUtils.closeQuietly(is);
+    	 }
+    	 
+    	 return BigramModel.map(file);
+     }
+     
+     /**
+      * Saves the suggestions kept for the latest words in the background, so the next load of their language 
+      * starts with them. Saves run with the loads, so a restore never reads a file being written.
+      * 
+      * @param context context used to find the cache file
+      * @return the pending save
+      */
+     public Future<?> saveCache(final Context context)
+     {
+    	 // the words kept now, a load requested before the save runs clears them
+    	 final SuggestionCache cache = mCache.copy();
+    	 return mLoader.submit(new Runnable() 
+    	 {
+    		 @Override
+    		 public void run() 
+    		 {
+    			 // words of other languages saved before the app was updated aren't kept
+    			 File file = new File(context.getFilesDir(), CACHE_FILE);
+    			 if(file.exists() && file.lastModified() < getLastUpdateTime(context)) file.delete();
+    			 
+    			 try
+    			 {
+    				 cache.save(file);
+    			 }
+    			 catch(IOException ioe)
+    			 {
+    				 Log.v(OpenBrailleInput.TAG, "Couldn't save suggestions" + ioe.getMessage());
+    			 }
+    		 }
+    	 });
+     }
+     
+     /*
+      * Suggestions saved before the app was updated may come from another dictionary
+      */
+     private void restoreCache(Context context, String locale)
+     {
+    	 File file = new File(context.getFilesDir(), CACHE_FILE);
+    	 if(!file.exists() || file.lastModified() < getLastUpdateTime(context)) return;
+    	 
+    	 try
+    	 {
+    		 mCache.restore(file, locale);
+    	 }
+    	 catch(IOException ioe)
+    	 {
+    		 Log.v(OpenBrailleInput.TAG, "Couldn't restore suggestions" + ioe.getMessage());
+    	 }
+     }
+     
+     /*
+      * The dawg is mapped from a binary copy in the app files. The copy is converted once from the serialized raw
+      * resource, and again whenever the app is updated or the binary format changes.
+      */
+     private MAFSA loadDawg(Context context, int resource, String name) throws IOException
+     {
+    	 File file = new File(context.getFilesDir(), name + ".mafsa");
+    	 
+    	 if(file.exists() && file.lastModified() >= getLastUpdateTime(context))
+    	 {
+    		 try
+    		 {
+    			 return MAFSA.map(file);
+    		 }
+    		 catch(DataFormatException dfe)
+    		 {
+    			 Log.v(OpenBrailleInput.TAG, "Converting outdated " + file.getName());
+    		 }
+    	 }
+    	 
+    	 InputStream is = context.getResources().openRawResource(resource);
+    	 try
+    	 {
+    		 MAFSA.convert(is, file);
+    	 }
+    	 catch(IOException ioe)
+    	 {
+    		 // no room to convert, keep the serialized dawg in memory
+    		 Log.v(OpenBrailleInput.TAG, "Couldn't convert dawg" + ioe.getMessage());
+    		 IOUtils.closeQuietly(is);
+    		 is = context.getResources().openRawResource(resource);
+    		 return MAFSA.load(is);
+    	 }
+    	 finally
+    	 {
+    		 IOUtils.closeQuietly(is);
+    	 }
+    	 
+    	 return MAFSA.map(file);
+     }
+     
+     private long getLastUpdateTime(Context context)
+     {
+    	 try 
+    	 {
+    		 return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+    	 } 
+    	 catch (NameNotFoundException e) 
+    	 {
+    		 // can't tell, so don't trust any previous conversion
+    		 return Long.MAX_VALUE;
+    	 }
+     }
+     
+     /*
+      * Frequencies are converted and mapped like the dawg.
+      */
+     private FrequencyTable loadFrequencies(Context context, int resource, String name) throws IOException
+     {
+    	 File file = new File(context.getFilesDir(), name + ".freq");
+    	 
+    	 if(file.exists() && file.lastModified() >= getLastUpdateTime(context))
+    	 {
+    		 try
+    		 {
+    			 return FrequencyTable.map(file);
+    		 }
+    		 catch(DataFormatException dfe)
+    		 {
+    			 Log.v(OpenBrailleInput.TAG, "Converting outdated " + file.getName());
+    		 }
+    	 }
+    	 
+    	 InputStream is = context.getResources().openRawResource(resource);
+    	 try
+    	 {
+    		 FrequencyTable.convert(is, file);
+    	 }
+    	 catch(IOException ioe)
+    	 {
+    		 // no room to convert, keep the frequencies in memory
+    		 Log.v(OpenBrailleInput.TAG, "Couldn't convert frequencies" + ioe.getMessage());
+    		 IOUtils.closeQuietly(is);
+    		 is = context.getResources().openRawResource(resource);
+    		 return FrequencyTable.load(is);
+    	 }
+    	 finally
+    	 {
+    		 IOUtils.closeQuietly(is);
+    	 }
+    	 
+    	 return FrequencyTable.map(file);
      }
-    
-    private class Quicksort  
-    {
-  	  private SuggestionResult[] data;
-  	  private int number;
-
-  	  public void sort(SuggestionResult[] values) {
-  	    // check for empty or null array
-  	    if (values == null || values.length == 0){
-  	      return;
-  	    }
-  	    this.data = values;
-  	    number = values.length;
-  	    quicksort(0, number - 1);
-  	  }
-
-  	  private void quicksort(int low, int high) {
-  	    int i = low, j = high;
-  	    // Get the pivot element from the middle of the list
-  	    SuggestionResult pivot = data[low + (high-low)/2];
-
-  	    // Divide into two lists
-  	    while (i <= j) {
-  	      // If the current value from the left list is smaller then the pivot
-  	      // element then get the next element from the left list
-  	      while (data[i].msdScore < pivot.msdScore) {
-  	        i++;
-  	      }
-  	      // If the current value from the right list is larger then the pivot
-  	      // element then get the next element from the right list
-  	      while (data[j].msdScore > pivot.msdScore) {
-  	        j--;
-  	      }
-
-  	      // If we have found a values in the left list which is larger then
-  	      // the pivot element and if we have found a value in the right list
-  	      // which is smaller then the pivot element then we exchange the
-  	      // values.
-  	      // As we are done we can increase i and j
-  	      if (i <= j) {
-  	        exchange(i, j);
-  	        i++;
-  	        j--;
-  	      }
-  	    }
-  	    // Recursion
-  	    if (low < j)
-  	      quicksort(low, j);
-  	    if (i < high)
-  	      quicksort(i, high);
-  	  }
-
-  	  private void exchange(int i, int j) {
-  	    SuggestionResult temp = data[i];
-  	    data[i] = data[j];
-  	    data[j] = temp;
-  	  }
-    }
     
 }
@@ -204,53 +204,42 @@ public class ChordDistances {
 		{2,3,4,2,2,3,3,3,4,2,2,4,5,3,3,4,4,4,5,3,3,3,4,2,2,3,3,2,3,4,3,2,2,4,3,3,3,2,3,1,4,3,2,3,4,3,1,3,2,2,3,2,2,2,1,2,1,2,1,1,1,2,0,1},
 		{2,3,4,3,3,2,4,4,3,3,3,4,5,4,4,3,5,5,4,4,4,3,4,2,3,3,2,2,3,4,2,1,2,3,2,3,2,1,3,1,4,4,3,3,3,3,2,3,3,1,2,3,2,3,2,2,2,2,2,2,1,1,1,0}};
 	
-	static public Distance Damerau = new Distance() {
-		
-		@Override
-		public int getDistance(char c1, char c2) {
-			
-			// TODO optimize get index. each char has an int value
-			int i1 = getIndex(Character.toLowerCase(c1));
-			if(i1 < 0 || i1 >= mDamerauDistance.length) return Integer.MAX_VALUE;
-			int i2 = getIndex(Character.toLowerCase(c2));
-			if(i2 < 0 || i2 >= mDamerauDistance.length) return Integer.MAX_VALUE;
-			// return matrix value
-			return mDamerauDistance[i1][i2];
-		}
-	};
+	// alphabets mapping characters to matrix indexes
+	final static private int ALPHABET = 0;
+	final static private int ALPHABET_PT = 1;
+	final static private int ALPHABET_EN = 2;
 	
-	static public Distance DamerauPT = new Distance() {
-		
-		@Override
-		public int getDistance(char c1, char c2) {
-			
-			// TODO optimize get index. each char has an int value
-			int i1 = getIndexPT(Character.toLowerCase(c1));
-			if(i1 < 0 || i1 >= mDamerauDistancePT.length) return Integer.MAX_VALUE;
-			int i2 = getIndexPT(Character.toLowerCase(c2));
-			if(i2 < 0 || i2 >= mDamerauDistancePT.length) return Integer.MAX_VALUE;
-			// return matrix value
-			return mDamerauDistancePT[i1][i2];
-		}
-	};
+	static public Distance Damerau = new CompiledDistance(slots(ALPHABET, mDamerauDistance.length), 
+			mDamerauDistance);
 	
-	static public Distance DamerauEN = new Distance() {
-		
-		@Override
-		public int getDistance(char c1, char c2) {
-			
-			// TODO optimize get index. each char has an int value
-			int i1 = getIndexEN(Character.toLowerCase(c1));
-			if(i1 < 0 || i1 >= mDamerauDistanceEN.length) return Integer.MAX_VALUE;
-			int i2 = getIndexEN(Character.toLowerCase(c2));
-			if(i2 < 0 || i2 >= mDamerauDistanceEN.length) return Integer.MAX_VALUE;
-			// return matrix value
-			return mDamerauDistanceEN[i1][i2];
-		}
-	};
+	static public Distance DamerauPT = new CompiledDistance(slots(ALPHABET_PT, mDamerauDistancePT.length), 
+			mDamerauDistancePT);
+	
+	static public Distance DamerauEN = new CompiledDistance(slots(ALPHABET_EN, mDamerauDistanceEN.length), 
+			mDamerauDistanceEN);
 		
 	/* UTILS METHODS */
 	final static protected int NCHARS = 27; // all letters + space
+	
+	/*
+	 * Looks up the matrix index of each character once, lower case as getDistance always compared them
+	 */
+	private static byte[] slots(int alphabet, int matrixSize)
+	{
+		byte[] slots = new byte[CompiledDistance.SLOT_TABLE_SIZE];
+		for(int c = 0; c < slots.length; c++)
+		{
+			char lower = Character.toLowerCase((char) c);
+			int index;
+			if(alphabet == ALPHABET_PT) index = getIndexPT(lower);
+			else if(alphabet == ALPHABET_EN) index = getIndexEN(lower);
+			else index = getIndex(lower);
+			
+			slots[c] = (byte) (index >= 0 && index < matrixSize ? index : -1);
+		}
+		return slots;
+	}
+	
 	private static int getIndex(char c)
 	{
 		int pos = ((int)c) - 96;
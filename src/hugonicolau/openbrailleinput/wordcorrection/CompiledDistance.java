@@ -0,0 +1,57 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+package hugonicolau.openbrailleinput.wordcorrection;
+
+/**
+ * Distance read from flat tables: a slot for each character and a square matrix of distances between slots, 
+ * so a lookup is two array reads. Characters are compared in lower case.
+ */
+class CompiledDistance extends Distance {
+
+	// slots of the characters up to 0xFF, which lower case to characters up to 0xFF
+	static final int SLOT_TABLE_SIZE = 256;
+	
+	private final byte[] mSlots;
+	private final byte[] mDistances;
+	private final int mSlotCount;
+	
+	/**
+	 * @param slots slot of each character up to 0xFF, or -1 if unknown
+	 * @param distances square matrix of distances between slots
+	 */
+	CompiledDistance(byte[] slots, int[][] distances)
+	{
+		mSlots = slots;
+		mSlotCount = distances.length;
+		mDistances = new byte[mSlotCount * mSlotCount];
+		for(int i = 0; i < mSlotCount; i++)
+			for(int j = 0; j < mSlotCount; j++)
+				mDistances[i * mSlotCount + j] = (byte) distances[i][j];
+	}
+	
+	@Override
+	public int getDistance(char c1, char c2) {
+		int s1 = getSlot(c1);
+		int s2 = getSlot(c2);
+		if(s1 < 0 || s2 < 0) return Integer.MAX_VALUE;
+		return mDistances[s1 * mSlotCount + s2];
+	}
+
+	@Override
+	public int getSlotCount() {
+		return mSlotCount;
+	}
+
+	@Override
+	public int getSlot(char c) {
+		if(c < SLOT_TABLE_SIZE) return mSlots[c];
+		
+		// a few characters above 0xFF have a lower case in the table
+		char lower = Character.toLowerCase(c);
+		return lower < SLOT_TABLE_SIZE ? mSlots[lower] : -1;
+	}
+
+	@Override
+	public int getSlotDistance(int slot1, int slot2) {
+		return mDistances[slot1 * mSlotCount + slot2];
+	}
+}
@@ -0,0 +1,338 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+package hugonicolau.openbrailleinput.wordcorrection;
+
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.MAFSA;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.MAFSABuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Command line tool that compiles a word list into the dawg and frequency files of a language, in the binary
+ * formats the app maps (see MAFSA.storeBinary and FrequencyTable). Both files can replace the raw resources.
+ * Runs on a plain JVM, with commons-io on the classpath:
+ *
+ * java hugonicolau.openbrailleinput.wordcorrection.DictionaryCompiler [options] words dawg frequencies
+ *
+ * -log					frequencies are counts, scaled to ln(1 + count) / ln(1 + max count); otherwise they
+ * 						are divided by the highest one, as the levels of the Android word lists
+ * -charset name		charset of the word list, UTF-8 by default
+ * -bigrams pairs file	also converts a list of pairs of words, as in assets/ngrams, for the new dawg
+ *
+ * The word list holds a word per line, optionally followed by a tab and its frequency, or the rank, word and
+ * count of assets/ngrams, tab separated. Words are upper cased and sorted, in chunks sorted in memory and merged
+ * from temporary files, so memory grows with the dawg and not with the list.
+ */
+public class DictionaryCompiler
+{
+	// words sorted in memory at a time
+	private static final int SORT_CHUNK = 1 << 18;
+
+	private static final String USAGE = "usage: DictionaryCompiler [-log] [-charset name] [-bigrams pairs file] "
+			+ "words dawg frequencies";
+
+	/*
+	 * A word and its frequency, as read from the list
+	 */
+	private static class Entry implements Comparable<Entry>
+	{
+		final String word;
+		final float frequency;
+
+		Entry(String word, float frequency)
+		{
+			this.word = word;
+			this.frequency = frequency;
+		}
+
+		@Override
+		public int compareTo(Entry other)
+		{
+			return word.compareTo(other.word);
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		boolean log = false;
+		String charset = "UTF-8";
+		File pairs = null;
+		File bigrams = null;
+
+		int i = 0;
+		for(; i < args.length && args[i].startsWith("-"); i++)
+		{
+			if(args[i].equals("-log"))
+				log = true;
+			else if(args[i].equals("-charset") && i + 1 < args.length)
+				charset = args[++i];
+			else if(args[i].equals("-bigrams") && i + 2 < args.length)
+			{
+				pairs = new File(args[++i]);
+				bigrams = new File(args[++i]);
+			}
+			else
+				usage();
+		}
+		if(args.length - i != 3)
+			usage();
+
+		InputStream is = new FileInputStream(args[i]);
+		MAFSABuilder builder = new MAFSABuilder();
+		try
+		{
+			compile(is, charset, builder);
+		}
+		finally
+		{
+			IOUtils.closeQuietly(is);
+		}
+
+		MAFSA dawg = builder.build();
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(args[i + 1]), 8 * 1024);
+		try
+		{
+			dawg.storeBinary(os);
+		}
+		finally
+		{
+			os.close();
+		}
+
+		os = new BufferedOutputStream(new FileOutputStream(args[i + 2]), 8 * 1024);
+		try
+		{
+			FrequencyTable.store(normalize(builder.frequencies(), log), os);
+		}
+		finally
+		{
+			os.close();
+		}
+
+		System.out.println(builder.wordCount() + " words, " + dawg.nodeCount() + " nodes");
+
+		if(pairs != null)
+		{
+			is = new FileInputStream(pairs);
+			try
+			{
+				BigramModel.convert(is, dawg, bigrams);
+			}
+			finally
+			{
+				IOUtils.closeQuietly(is);
+			}
+			System.out.println(BigramModel.map(bigrams).size() + " pairs");
+		}
+	}
+
+	private static void usage()
+	{
+		System.err.println(USAGE);
+		System.exit(1);
+	}
+
+	/**
+	 * Adds the words of a list to a builder, in order.
+	 *
+	 * @param is the stream with the word list, which remains open
+	 * @param charset the charset of the list
+	 * @param builder the builder to add the words to
+	 * @throws IOException if reading the list or the temporary files causes an IOException
+	 */
+	public static void compile(InputStream is, String charset, MAFSABuilder builder) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, charset), 8 * 1024);
+		List<File> chunks = new ArrayList<File>();
+		try
+		{
+			List<Entry> entries = new ArrayList<Entry>();
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				Entry entry = parse(line);
+				if(entry == null)
+					continue;
+
+				entries.add(entry);
+				if(entries.size() == SORT_CHUNK)
+				{
+					chunks.add(spill(entries));
+					entries.clear();
+				}
+			}
+
+			Collections.sort(entries);
+			if(chunks.isEmpty())
+			{
+				for(Entry entry : entries)
+					builder.add(entry.word, entry.frequency);
+				return;
+			}
+
+			if(!entries.isEmpty())
+				chunks.add(spill(entries));
+			merge(chunks, builder);
+		}
+		finally
+		{
+			for(File chunk : chunks)
+				chunk.delete();
+		}
+	}
+
+	/*
+	 * Reads a word and its frequency, or returns null for a blank line
+	 */
+	private static Entry parse(String line) throws IOException
+	{
+		String[] fields = line.trim().split("\t");
+		if(fields[0].length() == 0)
+			return null;
+
+		try
+		{
+			switch(fields.length)
+			{
+			case 1:
+				return new Entry(fields[0].trim().toUpperCase(Locale.ENGLISH), 0);
+			case 2:
+				return new Entry(fields[0].trim().toUpperCase(Locale.ENGLISH), Float.parseFloat(fields[1]));
+			case 3:
+				return new Entry(fields[1].trim().toUpperCase(Locale.ENGLISH), Float.parseFloat(fields[2]));
+			default:
+				throw new IOException("Bad line in word list: " + line);
+			}
+		}
+		catch(NumberFormatException nfe)
+		{
+			throw new IOException("Bad frequency in word list: " + line, nfe);
+		}
+	}
+
+	/*
+	 * Sorts some entries to a temporary file
+	 */
+	private static File spill(List<Entry> entries) throws IOException
+	{
+		Collections.sort(entries);
+
+		File chunk = File.createTempFile("words", ".chunk");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(chunk), 8 * 1024));
+		try
+		{
+			for(Entry entry : entries)
+			{
+				out.writeUTF(entry.word);
+				out.writeFloat(entry.frequency);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		return chunk;
+	}
+
+	/*
+	 * The next entry of each chunk, the smallest first
+	 */
+	private static class Head implements Comparable<Head>
+	{
+		final DataInputStream in;
+		Entry entry;
+
+		Head(DataInputStream in)
+		{
+			this.in = in;
+		}
+
+		boolean next() throws IOException
+		{
+			try
+			{
+				entry = new Entry(in.readUTF(), in.readFloat());
+				return true;
+			}
+			catch(EOFException eofe)
+			{
+				return false;
+			}
+		}
+
+		@Override
+		public int compareTo(Head other)
+		{
+			return entry.compareTo(other.entry);
+		}
+	}
+
+	private static void merge(List<File> chunks, MAFSABuilder builder) throws IOException
+	{
+		PriorityQueue<Head> heads = new PriorityQueue<Head>(chunks.size());
+		List<DataInputStream> streams = new ArrayList<DataInputStream>();
+		try
+		{
+			for(File chunk : chunks)
+			{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(chunk), 8 * 1024));
+				streams.add(in);
+				Head head = new Head(in);
+				if(head.next())
+					heads.add(head);
+			}
+
+			while(!heads.isEmpty())
+			{
+				Head head = heads.poll();
+				builder.add(head.entry.word, head.entry.frequency);
+				if(head.next())
+					heads.add(head);
+			}
+		}
+		finally
+		{
+			for(DataInputStream in : streams)
+				IOUtils.closeQuietly(in);
+		}
+	}
+
+	/*
+	 * Frequencies in [0, 1], as the app expects them
+	 */
+	private static float[] normalize(float[] frequencies, boolean log)
+	{
+		float max = 0;
+		for(float frequency : frequencies)
+			max = Math.max(max, frequency);
+		if(max == 0)
+			return frequencies;
+
+		for(int i = 0; i < frequencies.length; i++)
+		{
+			if(log)
+				frequencies[i] = (float) (Math.log(1 + frequencies[i]) / Math.log(1 + max));
+			else
+				frequencies[i] = frequencies[i] / max;
+		}
+		return frequencies;
+	}
+}
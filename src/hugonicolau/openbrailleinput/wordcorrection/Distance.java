@@ -6,4 +6,24 @@ public abstract class Distance {
 	
 	public abstract int getDistance(char c1, char c2);
 	
+	/*
+	 * Characters known to a distance map to slots, so a character can be looked up once and compared 
+	 * many times. 
+	 */
+	
+	/**
+	 * Returns the number of slots, slots go from 0 to getSlotCount() - 1
+	 */
+	public abstract int getSlotCount();
+	
+	/**
+	 * Returns the slot of a character, or -1 if the distance doesn't know it
+	 */
+	public abstract int getSlot(char c);
+	
+	/**
+	 * Returns the distance between the characters in two slots, as getDistance does for the characters
+	 */
+	public abstract int getSlotDistance(int slot1, int slot2);
+	
 }
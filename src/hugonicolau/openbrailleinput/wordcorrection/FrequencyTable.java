@@ -0,0 +1,425 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+package hugonicolau.openbrailleinput.wordcorrection;
+
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.DataFormatException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Word frequencies indexed by the minimal perfect hash of the MAFSA (see MAFSA.wordToHash).
+ *
+ * Frequencies are normalized log frequencies in [0, 1]. Tables with at most 256 distinct values, as the shipped
+ * ones, are stored as 8 bit codes into a codebook and are exact. Other tables are quantized linearly to 16 bits.
+ *
+ * Binary format (little endian), version 1:
+ *
+ * 4 bytes		: magic "FREQ"
+ * 4 bytes		: format version
+ * 4 bytes		: value count (n)
+ * 4 bytes		: bits per value, 8 or 16
+ * 8 bits		: 256 * 4 bytes codebook, then n bytes of codes
+ * 16 bits		: 4 bytes minimum, 4 bytes step, then n * 2 bytes of levels
+ */
+public class FrequencyTable
+{
+	private static final int MAGIC = 0x51455246; // "FREQ" read as a little endian int
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int CODEBOOK_SIZE = 256;
+	private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	private final int mSize;
+	private final int mBits;
+	private final ByteBuffer mValues;
+
+	// 8 bits
+	private final float[] mCodebook;
+
+	// 16 bits
+	private final float mMinimum;
+	private final float mStep;
+
+	// block maxima for range queries, built on first use
+	private static final int BLOCK_SHIFT = 6;
+	private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+	private volatile char[][] mBlockMaxima = null;
+
+	private FrequencyTable(int size, int bits, ByteBuffer values, float[] codebook, float minimum, float step)
+	{
+		mSize = size;
+		mBits = bits;
+		mValues = values;
+		mCodebook = codebook;
+		mMinimum = minimum;
+		mStep = step;
+	}
+
+	/**
+	 * Returns the frequency of a word.
+	 *
+	 * @param hash the hash of the word, as returned by MAFSA.wordToHash
+	 * @return the normalized frequency
+	 */
+	public float get(int hash)
+	{
+		if(mBits == 8)
+			return mCodebook[mValues.get(hash) & 0xFF];
+		else
+			return mMinimum + (mValues.getShort(hash << 1) & 0xFFFF) * mStep;
+	}
+
+	/**
+	 * Returns the highest frequency of a range of words. Words sharing a prefix have consecutive hashes, so this
+	 * bounds the frequency of every word below a node.
+	 *
+	 * @param from the first hash
+	 * @param to the hash after the last one
+	 * @return the highest frequency, or 0 for an empty range
+	 */
+	public float max(int from, int to)
+	{
+		if(from >= to)
+			return 0;
+
+		int firstBlock = (from + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+		int lastBlock = to >> BLOCK_SHIFT;
+
+		int max = 0;
+		if(firstBlock >= lastBlock)
+		{
+			// no whole block in the range
+			for(int i = from; i < to; i++)
+				max = Math.max(max, level(i));
+		}
+		else
+		{
+			for(int i = from; i < firstBlock << BLOCK_SHIFT; i++)
+				max = Math.max(max, level(i));
+			for(int i = lastBlock << BLOCK_SHIFT; i < to; i++)
+				max = Math.max(max, level(i));
+
+			// two overlapping power of two spans cover the whole blocks
+			char[][] maxima = blockMaxima();
+			int span = 31 - Integer.numberOfLeadingZeros(lastBlock - firstBlock);
+			max = Math.max(max, Math.max(maxima[span][firstBlock], maxima[span][lastBlock - (1 << span)]));
+		}
+
+		return value(max);
+	}
+
+	/**
+	 * Returns the number of values, one more than the number of words since hashes start at 1.
+	 */
+	public int size()
+	{
+		return mSize;
+	}
+
+	public int bits()
+	{
+		return mBits;
+	}
+
+	/*
+	 * Codes and levels grow with the frequency, so maxima can be taken over them.
+	 */
+	private int level(int hash)
+	{
+		if(mBits == 8)
+			return mValues.get(hash) & 0xFF;
+		else
+			return mValues.getShort(hash << 1) & 0xFFFF;
+	}
+
+	private float value(int level)
+	{
+		if(mBits == 8)
+			return mCodebook[level];
+		else
+			return mMinimum + level * mStep;
+	}
+
+	/*
+	 * Sparse table over whole blocks: row p holds the maximum of 2^p blocks starting at each block.
+	 */
+	private char[][] blockMaxima()
+	{
+		char[][] maxima = mBlockMaxima;
+		if(maxima != null)
+			return maxima;
+
+		int blocks = mSize >> BLOCK_SHIFT;
+		int spans = 32 - Integer.numberOfLeadingZeros(Math.max(1, blocks));
+		maxima = new char[spans][];
+
+		maxima[0] = new char[blocks];
+		for(int i = 0; i < blocks << BLOCK_SHIFT; i++)
+			maxima[0][i >> BLOCK_SHIFT] = (char) Math.max(maxima[0][i >> BLOCK_SHIFT], level(i));
+
+		for(int p = 1; p < spans; p++)
+		{
+			int half = 1 << (p - 1);
+			maxima[p] = new char[blocks - (1 << p) + 1];
+			for(int j = 0; j < maxima[p].length; j++)
+				maxima[p][j] = (char) Math.max(maxima[p - 1][j], maxima[p - 1][j + half]);
+		}
+
+		// racing builds compute the same table
+		mBlockMaxima = maxima;
+		return maxima;
+	}
+
+	/**
+	 * Builds a table from plain frequencies.
+	 *
+	 * @param frequencies frequencies indexed by word hash
+	 * @return the compact table
+	 */
+	public static FrequencyTable fromArray(float[] frequencies)
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(encode(frequencies));
+		try
+		{
+			return read(buffer);
+		}
+		catch(DataFormatException dfe)
+		{
+			// encode always writes a valid table
+			throw new IllegalStateException(dfe);
+		}
+	}
+
+	/**
+	 * Reads a table from a stream, either a serialized float[] as in the raw resources or the binary format. The
+	 * stream remains open.
+	 *
+	 * @param is the stream with the frequencies
+	 * @return the table
+	 * @throws DataFormatException if the stream doesn't hold frequencies
+	 * @throws IOException if reading from the stream causes an IOException
+	 */
+	public static FrequencyTable load(InputStream is) throws IOException
+	{
+		BufferedInputStream bis = new BufferedInputStream (is, 8 * 1024);
+
+		if(isBinary(bis))
+			return read(ByteBuffer.wrap(IOUtils.toByteArray(bis)));
+
+		return fromArray(readSerialized(bis));
+	}
+
+	private static boolean isBinary(BufferedInputStream bis) throws IOException
+	{
+		byte[] magic = new byte[4];
+		bis.mark(magic.length);
+		int read = IOUtils.read(bis, magic);
+		bis.reset();
+
+		return read == magic.length && ByteBuffer.wrap(magic).order(BYTE_ORDER).getInt() == MAGIC;
+	}
+
+	/**
+	 * Maps a table stored in the binary format. Values are read through the mapping, nothing is copied.
+	 *
+	 * @param file the file written by {@link #convert(InputStream, File)}
+	 * @return the table
+	 * @throws DataFormatException if the file isn't a frequency table of a supported version
+	 * @throws IOException if mapping the file causes an IOException
+	 */
+	public static FrequencyTable map(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Converts serialized frequencies, as shipped in the raw resources, to a binary file that can then be mapped.
+	 * Frequencies already in the binary format, as written by DictionaryCompiler, are copied as they are.
+	 *
+	 * @param is the stream with the serialized float[] or the binary table
+	 * @param file the binary file to create
+	 * @throws IOException if reading the frequencies or writing the file causes an IOException
+	 */
+	public static void convert(InputStream is, File file) throws IOException
+	{
+		BufferedInputStream bis = new BufferedInputStream(is, 8 * 1024);
+		boolean binary = isBinary(bis);
+		float[] frequencies = binary ? null : readSerialized(bis);
+
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(temp), 8 * 1024);
+		try
+		{
+			if(binary)
+				IOUtils.copy(bis, os);
+			else
+				store(frequencies, os);
+		}
+		finally
+		{
+			os.close();
+		}
+
+		if(!temp.renameTo(file))
+		{
+			temp.delete();
+			throw new IOException("Couldn't write " + file);
+		}
+	}
+
+	/**
+	 * Writes frequencies in the binary format. The stream is flushed but not closed.
+	 *
+	 * @param frequencies frequencies indexed by word hash
+	 * @param os the stream to write to
+	 * @throws IOException if writing to the stream causes an IOException
+	 */
+	public static void store(float[] frequencies, OutputStream os) throws IOException
+	{
+		os.write(encode(frequencies));
+		os.flush();
+	}
+
+	private static float[] readSerialized(InputStream is) throws IOException
+	{
+		ObjectInputStream ois = new ObjectInputStream(is);
+		try
+		{
+			return (float[]) ois.readObject();
+		}
+		catch(ClassNotFoundException cnfe)
+		{
+			throw new DataFormatException("Bad file.  Not valid for loading frequencies", cnfe);
+		}
+		catch(ClassCastException cce)
+		{
+			throw new DataFormatException("Bad file.  Not valid for loading frequencies", cce);
+		}
+	}
+
+	private static byte[] encode(float[] frequencies)
+	{
+		int n = frequencies.length;
+
+		TreeSet<Float> distinct = new TreeSet<Float>();
+		for(int i = 0; i < n && distinct.size() <= CODEBOOK_SIZE; i++)
+			distinct.add(frequencies[i]);
+
+		ByteBuffer buffer;
+		if(distinct.size() <= CODEBOOK_SIZE)
+		{
+			// exact: every value is a code into the codebook
+			float[] codebook = new float[CODEBOOK_SIZE];
+			int size = 0;
+			for(float value : distinct)
+				codebook[size++] = value;
+			// the unused codes repeat the largest value, or 0 if there are no frequencies at all
+			Arrays.fill(codebook, size, CODEBOOK_SIZE, size == 0 ? 0f : codebook[size - 1]);
+
+			buffer = header(n, 8, CODEBOOK_SIZE * 4 + n);
+			for(float value : codebook)
+				buffer.putFloat(value);
+			for(float value : frequencies)
+				buffer.put((byte) Arrays.binarySearch(codebook, 0, size, value));
+		}
+		else
+		{
+			// linear quantization between the smallest and the largest value
+			float minimum = Float.MAX_VALUE;
+			float maximum = -Float.MAX_VALUE;
+			for(float value : frequencies)
+			{
+				minimum = Math.min(minimum, value);
+				maximum = Math.max(maximum, value);
+			}
+			float step = (maximum - minimum) / 0xFFFF;
+
+			buffer = header(n, 16, 8 + 2 * n);
+			buffer.putFloat(minimum);
+			buffer.putFloat(step);
+			for(float value : frequencies)
+				buffer.putShort((short) (step == 0 ? 0 : Math.round((value - minimum) / step)));
+		}
+
+		return buffer.array();
+	}
+
+	private static ByteBuffer header(int n, int bits, int body)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + body);
+		buffer.order(BYTE_ORDER);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(n);
+		buffer.putInt(bits);
+		return buffer;
+	}
+
+	private static FrequencyTable read(ByteBuffer buffer) throws DataFormatException
+	{
+		buffer.order(BYTE_ORDER);
+
+		if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new DataFormatException("Bad file.  Not a frequency table");
+		if(buffer.getInt(4) != VERSION)
+			throw new DataFormatException("Unsupported frequency table version " + buffer.getInt(4));
+
+		int n = buffer.getInt(8);
+		int bits = buffer.getInt(12);
+
+		if(bits == 8)
+		{
+			int values = HEADER_SIZE + CODEBOOK_SIZE * 4;
+			if(buffer.capacity() < values + (long) n)
+				throw new DataFormatException("Bad file.  Truncated frequency table");
+
+			float[] codebook = new float[CODEBOOK_SIZE];
+			for(int i = 0; i < CODEBOOK_SIZE; i++)
+				codebook[i] = buffer.getFloat(HEADER_SIZE + 4 * i);
+
+			return new FrequencyTable(n, bits, section(buffer, values, n), codebook, 0, 0);
+		}
+		else if(bits == 16)
+		{
+			int values = HEADER_SIZE + 8;
+			if(buffer.capacity() < values + 2L * n)
+				throw new DataFormatException("Bad file.  Truncated frequency table");
+
+			return new FrequencyTable(n, bits, section(buffer, values, 2 * n), null,
+					buffer.getFloat(HEADER_SIZE), buffer.getFloat(HEADER_SIZE + 4));
+		}
+
+		throw new DataFormatException("Bad file.  Unsupported " + bits + " bits frequencies");
+	}
+
+	private static ByteBuffer section(ByteBuffer buffer, int offset, int length)
+	{
+		ByteBuffer section = buffer.duplicate();
+		section.position(offset);
+		section.limit(offset + length);
+		return section.slice().order(BYTE_ORDER);
+	}
+}
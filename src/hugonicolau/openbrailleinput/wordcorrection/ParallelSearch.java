@@ -0,0 +1,106 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+package hugonicolau.openbrailleinput.wordcorrection;
+
+import hugonicolau.openbrailleinput.ime.OpenBrailleInput;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.MAFSA;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.MSDQuery;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.SuggestionCollector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Splits MAFSA.searchMSD among several threads. The branches of the dawg below MAFSA.SPLIT_DEPTH are claimed
+ * one at a time by the workers, so the work evens out however unequal the branches are. Each worker searches
+ * its own duplicate of the dawg and collects into its own collector, so collectors need no locking.
+ */
+public class ParallelSearch
+{
+	private final ExecutorService mPool;
+	private final MAFSA[] mDawgs;
+
+	/**
+	 * @param pool threads the workers run on, at least as many as the workers for them to run at the same time
+	 * @param workers number of workers a search is split among
+	 */
+	public ParallelSearch(MAFSA dawg, ExecutorService pool, int workers)
+	{
+		mPool = pool;
+		mDawgs = new MAFSA[workers];
+		for(int i = 0; i < workers; i++)
+			mDawgs[i] = dawg.duplicate();
+	}
+
+	public int workers()
+	{
+		return mDawgs.length;
+	}
+
+	/**
+	 * Given a sequence of characters find the most probable valid words until a deadline, as
+	 * MAFSA.searchMSD does, returning once every worker is done.
+	 *
+	 * @param deadline the System.nanoTime() at which the search stops
+	 * @param results one collector per worker, each only called from its worker
+	 * @return true if the whole dawg was searched, false if the deadline stopped the search
+	 */
+	public boolean search(final String transWord, final int maxCost, final float insertionCost,
+			final float substitutionCost, final float omissionCost, final Distance distance, final long deadline,
+			SuggestionCollector[] results)
+	{
+		final AtomicInteger branches = new AtomicInteger();
+		List<Future<Boolean>> workers = new ArrayList<Future<Boolean>>(mDawgs.length);
+		for(int i = 0; i < mDawgs.length; i++)
+		{
+			final MAFSA dawg = mDawgs[i];
+			final SuggestionCollector collector = results[i];
+			final boolean shortWords = i == 0;
+			workers.add(mPool.submit(new Callable<Boolean>()
+			{
+				@Override
+				public Boolean call()
+				{
+					// a query computes the costs of unknown characters in place, so each worker has its own
+					MSDQuery query = new MSDQuery(transWord, insertionCost, substitutionCost, omissionCost, distance);
+					return dawg.searchMSD(query, maxCost, deadline, collector, branches, shortWords);
+				}
+			}));
+		}
+
+		// collectors are only read once every worker is done, so the wait outlasts interruptions
+		boolean complete = true;
+		boolean interrupted = false;
+		for(Future<Boolean> worker : workers)
+		{
+			while(true)
+			{
+				try
+				{
+					complete &= worker.get();
+					break;
+				}
+				catch(InterruptedException e)
+				{
+					interrupted = true;
+				}
+				catch(ExecutionException e)
+				{
+					Log.v(OpenBrailleInput.TAG, "Search worker failed " + e.getCause());
+					complete = false;
+					break;
+				}
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+
+		return complete;
+	}
+}
@@ -0,0 +1,162 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+package hugonicolau.openbrailleinput.wordcorrection;
+
+import hugonicolau.openbrailleinput.ime.OpenBrailleInput;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Corrects the word being typed in the background, while the user is still typing it. Each character starts
+ * a search for the word so far, replacing the one for the previous character if it hasn't started yet, so
+ * when the word ends its suggestions are usually ready. Searches run one at a time on a worker thread of
+ * their own, the only thread the correction session is used from, and their results can be handed to a
+ * Handler so the thread asking for them never waits on a search.
+ */
+public class SpeculativeCorrection
+{
+	private final BrailleWordCorrection mCorrection;
+	private final BrailleWordCorrection.Session mSession;
+	private final int mSuggestionsLimit;
+
+	private final ExecutorService mWorker = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "WordCorrection");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// the latest search, and the words and language it is for
+	private Future<String[]> mPending = null;
+	private String mPendingPreviousWord = null;
+	private String mPendingWord = null;
+	private String mPendingLanguage = null;
+
+	/**
+	 * Receives the suggestions for a word corrected in the background.
+	 */
+	public interface Callback
+	{
+		void onSuggestions(String word, String[] suggestions);
+	}
+
+	public SpeculativeCorrection(BrailleWordCorrection correction, int suggestionsLimit)
+	{
+		mCorrection = correction;
+		mSession = correction.newSession();
+		mSuggestionsLimit = suggestionsLimit;
+	}
+
+	/**
+	 * Starts correcting the word typed so far. A search for an older word that hasn't started is cancelled.
+	 *
+	 * @param previousWord the word typed before, empty if there is none
+	 * @param word the word typed so far
+	 */
+	public synchronized void update(String previousWord, String word)
+	{
+		if(mPending != null)
+			mPending.cancel(false);
+
+		if(word.length() == 0)
+		{
+			mPending = null;
+			mPendingPreviousWord = null;
+			mPendingWord = null;
+			mPendingLanguage = null;
+		}
+		else
+		{
+			submit(previousWord, word);
+		}
+	}
+
+	/**
+	 * Corrects a word in the background, as BrailleWordCorrection.getSuggestions does, without waiting: the
+	 * search started for it by update is reused, or a new one started if the words changed since. The
+	 * suggestions are posted to the callback on a handler's thread once they are ready.
+	 */
+	public void getSuggestions(final String previousWord, final String word, final Handler handler,
+			final Callback callback)
+	{
+		final Future<String[]> search = searchFor(previousWord, word);
+		mWorker.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// searches run in order, so the one for the word is done or was cancelled before it started
+				String[] result;
+				try
+				{
+					result = search.get();
+				}
+				catch(CancellationException e)
+				{
+					result = mSession.getSuggestions(previousWord, word, mSuggestionsLimit);
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				catch(ExecutionException e)
+				{
+					Log.v(OpenBrailleInput.TAG, "Couldn't correct[" + word + "] " + e.getCause());
+					result = new String[0];
+				}
+
+				final String[] suggestions = result;
+				handler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						callback.onSuggestions(word, suggestions);
+					}
+				});
+			}
+		});
+	}
+
+	/*
+	 * Returns the search for a word, the pending one if it is for the same words and language
+	 */
+	private synchronized Future<String[]> searchFor(String previousWord, String word)
+	{
+		if(mPending == null || mPending.isCancelled() || !word.equals(mPendingWord)
+				|| !previousWord.equals(mPendingPreviousWord) || !mCorrection.Language.equals(mPendingLanguage))
+		{
+			if(mPending != null)
+				mPending.cancel(false);
+			submit(previousWord, word);
+		}
+		return mPending;
+	}
+
+	private void submit(final String previousWord, final String word)
+	{
+		mPendingPreviousWord = previousWord;
+		mPendingWord = word;
+		mPendingLanguage = mCorrection.Language;
+		mPending = mWorker.submit(new Callable<String[]>()
+		{
+			@Override
+			public String[] call()
+			{
+				return mSession.getSuggestions(previousWord, word, mSuggestionsLimit);
+			}
+		});
+	}
+}
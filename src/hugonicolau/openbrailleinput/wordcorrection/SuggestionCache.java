@@ -0,0 +1,278 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+package hugonicolau.openbrailleinput.wordcorrection;
+
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.DataFormatException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The latest suggestions returned, least recently used first out. Users slip the same chords over and over, so
+ * a repeated word costs a lookup instead of a search. Entries are keyed by language, previous word, typed word,
+ * maxCost and suggestions limit, and can be saved to a file to outlive the session. The previous word is empty
+ * when it didn't take part in the search.
+ *
+ * Binary format (big endian), version 2:
+ *
+ * 4 bytes		: magic "SUGC"
+ * 4 bytes		: format version
+ * 4 bytes		: entry count, then per entry, least recently used first:
+ * 				  language, previous word, word (modified UTF-8), maxCost, limit, suggestion count,
+ * 				  suggestions (modified UTF-8)
+ */
+public class SuggestionCache
+{
+	private static final int MAGIC = 0x53554743; // "SUGC"
+	private static final int VERSION = 2;
+
+	private final int mCapacity;
+	private final LinkedHashMap<Key, String[]> mEntries;
+	private int mHits = 0;
+	private int mMisses = 0;
+
+	/*
+	 * What a search for suggestions depends on
+	 */
+	private static class Key
+	{
+		final String language;
+		final String context;
+		final String word;
+		final int maxCost;
+		final int limit;
+
+		Key(String language, String context, String word, int maxCost, int limit)
+		{
+			this.language = language;
+			this.context = context;
+			this.word = word;
+			this.maxCost = maxCost;
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return maxCost == other.maxCost && limit == other.limit && word.equals(other.word)
+					&& context.equals(other.context) && language.equals(other.language);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (((language.hashCode() * 31 + context.hashCode()) * 31 + word.hashCode()) * 31 + maxCost) * 31
+					+ limit;
+		}
+	}
+
+	/**
+	 * @param capacity number of words kept
+	 */
+	public SuggestionCache(final int capacity)
+	{
+		mCapacity = capacity;
+		mEntries = new LinkedHashMap<Key, String[]>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, String[]> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns a copy of the suggestions kept for a word, or null if there are none.
+	 */
+	public synchronized String[] get(String language, String context, String word, int maxCost, int limit)
+	{
+		String[] suggestions = mEntries.get(new Key(language, context, word, maxCost, limit));
+		if(suggestions == null)
+		{
+			mMisses++;
+			return null;
+		}
+		mHits++;
+		return suggestions.clone();
+	}
+
+	public synchronized void put(String language, String context, String word, int maxCost, int limit,
+			String[] suggestions)
+	{
+		mEntries.put(new Key(language, context, word, maxCost, limit), suggestions.clone());
+	}
+
+	/**
+	 * Forgets every word, keeping the counters.
+	 */
+	public synchronized void clear()
+	{
+		mEntries.clear();
+	}
+
+	/**
+	 * Returns a cache holding the words kept, in the same order, with fresh counters.
+	 */
+	public synchronized SuggestionCache copy()
+	{
+		SuggestionCache copy = new SuggestionCache(mCapacity);
+		copy.mEntries.putAll(mEntries);
+		return copy;
+	}
+
+	public synchronized int size()
+	{
+		return mEntries.size();
+	}
+
+	public int capacity()
+	{
+		return mCapacity;
+	}
+
+	public synchronized int hits()
+	{
+		return mHits;
+	}
+
+	public synchronized int misses()
+	{
+		return mMisses;
+	}
+
+	/**
+	 * Saves the words kept to a file. Words the file holds for languages that aren't kept are saved again, before
+	 * the words kept, so switching languages doesn't lose them. The file is replaced once completely written.
+	 */
+	public void save(File file) throws IOException
+	{
+		// copied so the file is written without holding the lock
+		List<Map.Entry<Key, String[]>> entries;
+		synchronized(this)
+		{
+			entries = new ArrayList<Map.Entry<Key, String[]>>(mEntries.entrySet());
+		}
+
+		Set<String> languages = new HashSet<String>();
+		for(Map.Entry<Key, String[]> entry : entries)
+			languages.add(entry.getKey().language);
+
+		List<Map.Entry<Key, String[]>> others = new ArrayList<Map.Entry<Key, String[]>>();
+		if(file.exists())
+		{
+			try
+			{
+				for(Map.Entry<Key, String[]> entry : read(file))
+					if(!languages.contains(entry.getKey().language))
+						others.add(entry);
+			}
+			catch(IOException ioe)
+			{
+				// an unreadable file is replaced with the words kept
+			}
+		}
+		others.addAll(entries);
+		entries = others;
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for(Map.Entry<Key, String[]> entry : entries)
+			{
+				Key key = entry.getKey();
+				out.writeUTF(key.language);
+				out.writeUTF(key.context);
+				out.writeUTF(key.word);
+				out.writeInt(key.maxCost);
+				out.writeInt(key.limit);
+				out.writeInt(entry.getValue().length);
+				for(String suggestion : entry.getValue())
+					out.writeUTF(suggestion);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		if(!temp.renameTo(file))
+		{
+			temp.delete();
+			throw new IOException("Couldn't write " + file);
+		}
+	}
+
+	/**
+	 * Adds the words saved to a file for one language, as if they had just been used in the order saved.
+	 *
+	 * @throws DataFormatException if the file isn't a saved cache
+	 */
+	public void restore(File file, String language) throws IOException
+	{
+		for(Map.Entry<Key, String[]> entry : read(file))
+		{
+			Key key = entry.getKey();
+			if(key.language.equals(language))
+				put(language, key.context, key.word, key.maxCost, key.limit, entry.getValue());
+		}
+	}
+
+	/*
+	 * Reads every word saved to a file, in the order saved
+	 */
+	private static List<Map.Entry<Key, String[]>> read(File file) throws IOException
+	{
+		List<Map.Entry<Key, String[]>> entries = new ArrayList<Map.Entry<Key, String[]>>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new DataFormatException("Not a suggestion cache");
+
+			int count = in.readInt();
+			for(int i = 0; i < count; i++)
+			{
+				String language = in.readUTF();
+				String context = in.readUTF();
+				String word = in.readUTF();
+				int maxCost = in.readInt();
+				int limit = in.readInt();
+				String[] suggestions = new String[in.readInt()];
+				for(int j = 0; j < suggestions.length; j++)
+					suggestions[j] = in.readUTF();
+
+				entries.add(new AbstractMap.SimpleEntry<Key, String[]>(new Key(language, context, word, maxCost, limit),
+						suggestions));
+			}
+		}
+		finally
+		{
+			IOUtils.closeQuietly(in);
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,126 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+package hugonicolau.openbrailleinput.wordcorrection;
+
+/**
+ * Keeps the suggestions with the lowest scores, up to a fixed number. Scores are kept in a max-heap with the
+ * suggestions in a parallel array, so the worst suggestion kept is always at the top, ready to be replaced.
+ */
+public class SuggestionHeap
+{
+	private final float[] mScores;
+	private final String[] mSuggestions;
+	private int mSize = 0;
+
+	public SuggestionHeap(int capacity)
+	{
+		mScores = new float[Math.max(0, capacity)];
+		mSuggestions = new String[mScores.length];
+	}
+
+	public int size()
+	{
+		return mSize;
+	}
+
+	/**
+	 * Tells whether a suggestion with this score would be kept, so callers only build suggestions that are.
+	 */
+	public boolean accepts(float score)
+	{
+		return mSize < mScores.length || (mSize > 0 && score < mScores[0]);
+	}
+
+	/**
+	 * Returns the lowest score kept, or Float.POSITIVE_INFINITY if the heap is empty.
+	 */
+	public float bestScore()
+	{
+		// the best suggestion is one of the leaves
+		float score = Float.POSITIVE_INFINITY;
+		for(int i = mSize / 2; i < mSize; i++)
+			score = Math.min(score, mScores[i]);
+		return score;
+	}
+
+	/**
+	 * Adds a suggestion, replacing the worst one kept if the heap is full.
+	 *
+	 * @return true if the suggestion was kept
+	 */
+	public boolean offer(float score, String suggestion)
+	{
+		if(!accepts(score))
+			return false;
+
+		if(mSize < mScores.length)
+		{
+			// sift up from the new leaf
+			int i = mSize++;
+			while(i > 0)
+			{
+				int parent = (i - 1) / 2;
+				if(mScores[parent] >= score)
+					break;
+
+				mScores[i] = mScores[parent];
+				mSuggestions[i] = mSuggestions[parent];
+				i = parent;
+			}
+			mScores[i] = score;
+			mSuggestions[i] = suggestion;
+		}
+		else
+		{
+			siftDown(0, score, suggestion, mSize);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Offers every suggestion kept by another heap, which is left as it was.
+	 */
+	public void addAll(SuggestionHeap other)
+	{
+		for(int i = 0; i < other.mSize; i++)
+			offer(other.mScores[i], other.mSuggestions[i]);
+	}
+
+	/**
+	 * Returns the suggestions kept, best first, and empties the heap.
+	 */
+	public String[] toSortedArray()
+	{
+		String[] sorted = new String[mSize];
+		while(mSize > 0)
+		{
+			// the worst remaining suggestion goes to the end
+			int last = --mSize;
+			sorted[last] = mSuggestions[0];
+			siftDown(0, mScores[last], mSuggestions[last], last);
+			mSuggestions[last] = null;
+		}
+		return sorted;
+	}
+
+	private void siftDown(int i, float score, String suggestion, int size)
+	{
+		int child;
+		while((child = 2 * i + 1) < size)
+		{
+			if(child + 1 < size && mScores[child + 1] > mScores[child])
+				child++;
+			if(mScores[child] <= score)
+				break;
+
+			mScores[i] = mScores[child];
+			mSuggestions[i] = mSuggestions[child];
+			i = child;
+		}
+		if(size > 0)
+		{
+			mScores[i] = score;
+			mSuggestions[i] = suggestion;
+		}
+	}
+}
@@ -0,0 +1,345 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+package hugonicolau.openbrailleinput.wordcorrection;
+
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.IntStack;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.MAFSA;
+import hugonicolau.openbrailleinput.wordcorrection.mafsa.MSDQuery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a run of words typed without the spaces between them into the words that score best. Every way of
+ * reading a part of the run as a word is an edge between two positions of the run, and a dynamic program over
+ * the positions finds the best split into each number of words.
+ *
+ * Words spelled exactly are found with one dawg walk from each position. Words with slips in them are found by
+ * a weighted msd search of the rest of the run from each position a split reaches, for as long as the deadline
+ * allows, so a split of exact words is always found in bounded time. Words are spelled in upper case, as in the
+ * dawg.
+ */
+public class WordSegmenter
+{
+	// most words a run is split into
+	public static final int MAX_WORDS = 4;
+
+	// a word with slips is at most this far from the characters it was read from, at least
+	// APPROXIMATE_MIN_LENGTH long, and at most one character longer or shorter than them: cheap insertions
+	// would otherwise let a frequent word swallow the beginning of the next one
+	private static final int SEGMENT_MAX_COST = 2;
+	private static final int APPROXIMATE_MIN_LENGTH = 3;
+	
+	// every word of a split is at least this frequent, and at least two characters long unless it is one of
+	// the one letter words below: rare and short words fit almost anywhere in a run
+	private static final float PIECE_MIN_FREQUENCY = 0.25f;
+	private static final String ONE_LETTER_WORDS = "AEIO";
+
+	// the clock is read once every DEADLINE_CHECK_INTERVAL expanded nodes
+	private static final int DEADLINE_CHECK_INTERVAL = 64;
+
+	private final MAFSA mDawg;
+	private final FrequencyTable mFrequencies;
+	private final Distance mDistance;
+	private final float mInsertionCost;
+	private final float mSubstitutionCost;
+	private final float mOmissionCost;
+
+	/**
+	 * The best split of a run into a number of words.
+	 */
+	public static class Segmentation
+	{
+		public final String[] words;
+
+		// sum of the msds of the words
+		public final float msd;
+
+		// frequency of the least frequent word
+		public final float frequency;
+
+		// whether every word is spelled as typed
+		public final boolean exact;
+
+		Segmentation(String[] words, float msd, float frequency, boolean exact)
+		{
+			this.words = words;
+			this.msd = msd;
+			this.frequency = frequency;
+			this.exact = exact;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder(words[0]);
+			for(int i = 1; i < words.length; i++)
+				sb.append(' ').append(words[i]);
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Words with slips are read with the costs of the msd searches, so a chord substituted, typed in excess or
+	 * left out inside a run is repaired as it is in a single word.
+	 */
+	public WordSegmenter(MAFSA dawg, FrequencyTable frequencies, Distance distance, float insertionCost,
+			float substitutionCost, float omissionCost)
+	{
+		mDawg = dawg;
+		mFrequencies = frequencies;
+		mDistance = distance;
+		mInsertionCost = insertionCost;
+		mSubstitutionCost = substitutionCost;
+		mOmissionCost = omissionCost;
+	}
+
+	/**
+	 * Finds the best split of a run into each number of words, from 2 to MAX_WORDS.
+	 *
+	 * @param word the typed run
+	 * @param maxCost the maxCost of the whole run, which scales the msd of each word as in the suggestions
+	 * @param a weight of the msd of a word
+	 * @param b weight of the frequency of a word
+	 * @param deadline the System.nanoTime() after which no more words with slips are searched
+	 * @return the splits found, fewest words first
+	 */
+	public List<Segmentation> segment(String word, int maxCost, float a, float b, long deadline)
+	{
+		int length = word.length();
+		char[] letters = new char[length];
+		for(int i = 0; i < length; i++)
+			letters[i] = Character.toUpperCase(word.charAt(i));
+		return segment(letters, walk(mDawg, letters), maxCost, a, b, deadline);
+	}
+
+	/**
+	 * Finds the best splits of a run as segment(word, ...) does, from the walks already made from each of its
+	 * positions.
+	 *
+	 * @param letters the typed run, in upper case
+	 * @param walks the words in the run, as returned by walk
+	 */
+	public List<Segmentation> segment(char[] letters, int[][] walks, int maxCost, float a, float b, long deadline)
+	{
+		int length = letters.length;
+
+		// the best word read from position i to position j, a * msd / maxCost - b * frequency, with its msd and
+		// frequency; the word is null where it is the typed characters
+		Edges edges = new Edges(length);
+
+		// exact words
+		for(int i = 0; i < length; i++)
+		{
+			int[] hashes = walks[i];
+			for(int j = i; j < length; j++)
+			{
+				if(hashes[j] < 0) continue;
+				
+				float frequency = mFrequencies.get(hashes[j]);
+				if(isPiece(letters, i, j + 1, frequency)) edges.offer(i, j + 1, -b * frequency, 0, frequency, null);
+			}
+		}
+
+		// words with slips, from the positions some split reaches, while there is time
+		boolean[] reached = new boolean[length + 1];
+		reached[0] = true;
+		for(int i = 0; i < length && System.nanoTime() - deadline < 0; i++)
+		{
+			if(!reached[i])
+				continue;
+			if(!approximate(letters, i, maxCost, a, b, deadline, edges))
+				break;
+			for(int j = i + 1; j <= length; j++)
+				reached[j] |= edges.costs[i][j] != Float.POSITIVE_INFINITY;
+		}
+		float[][] costs = edges.costs;
+
+		// best[c][j]: the best c words that make up the run up to position j
+		float[][] best = new float[MAX_WORDS + 1][length + 1];
+		int[][] from = new int[MAX_WORDS + 1][length + 1];
+		for(float[] row : best)
+			Arrays.fill(row, Float.POSITIVE_INFINITY);
+		best[0][0] = 0;
+		for(int j = 1; j <= length; j++)
+			for(int i = 0; i < j; i++)
+			{
+				float cost = costs[i][j];
+				if(cost == Float.POSITIVE_INFINITY)
+					continue;
+				for(int c = 1; c <= MAX_WORDS; c++)
+				{
+					if(best[c - 1][i] + cost < best[c][j])
+					{
+						best[c][j] = best[c - 1][i] + cost;
+						from[c][j] = i;
+					}
+				}
+			}
+
+		List<Segmentation> segmentations = new ArrayList<Segmentation>();
+		for(int c = 2; c <= MAX_WORDS; c++)
+		{
+			if(best[c][length] == Float.POSITIVE_INFINITY)
+				continue;
+
+			String[] split = new String[c];
+			float msd = 0;
+			float frequency = 1;
+			boolean exact = true;
+			for(int k = c, j = length; k > 0; j = from[k][j], k--)
+			{
+				int i = from[k][j];
+				String found = edges.words[i][j];
+				split[k - 1] = found == null ? new String(letters, i, j - i) : found;
+				msd += edges.msds[i][j];
+				frequency = Math.min(frequency, edges.frequencies[i][j]);
+				exact &= found == null;
+			}
+			segmentations.add(new Segmentation(split, msd, frequency, exact));
+		}
+		return segmentations;
+	}
+
+	/**
+	 * Walks the dawg once from each position of a run, finding every word in it.
+	 *
+	 * @param letters the run, in upper case
+	 * @return at [i][j], the hash of the letters from position i up to j, or -1 if they aren't a word
+	 */
+	public static int[][] walk(MAFSA dawg, char[] letters)
+	{
+		int length = letters.length;
+		int[][] walks = new int[length][length];
+		for(int i = 0; i < length; i++)
+			dawg.prefixHashes(letters, i, length, walks[i]);
+		return walks;
+	}
+
+	/*
+	 * Adds the words with slips read from a position of the run, returning false if the deadline stopped the
+	 * search. The rows of the rest of the run are computed along the dawg as in MAFSA.searchMSD, and a word ends
+	 * at every position of the run its row is within SEGMENT_MAX_COST of.
+	 */
+	private boolean approximate(char[] letters, int start, int maxCost, float a, float b, long deadline,
+			Edges edges)
+	{
+		int remaining = letters.length - start;
+		MSDQuery query = new MSDQuery(new String(letters, start, remaining), mInsertionCost, mSubstitutionCost,
+				mOmissionCost, mDistance);
+		int columns = query.columns();
+
+		// no word longer than the rest of the run and one character can be a word of the split
+		int maxDepth = remaining + 1;
+		float[] rows = new float[(maxDepth + 1) * columns];
+		query.firstRow(rows, 0);
+
+		IntStack nodes = new IntStack();
+		IntStack depths = new IntStack();
+		IntStack hashes = new IntStack();
+		char[] path = new char[maxDepth];
+		push(0, 1, 0, nodes, depths, hashes);
+
+		int expanded = 0;
+		while(!nodes.empty())
+		{
+			if((++expanded & (DEADLINE_CHECK_INTERVAL - 1)) == 0 && System.nanoTime() - deadline >= 0)
+				return false;
+
+			int node = nodes.pop();
+			int depth = depths.pop();
+			int hash = hashes.pop();
+			char c = mDawg.charOf(node);
+			int row = depth * columns;
+			if(query.row(rows, row - columns, row, c) > SEGMENT_MAX_COST)
+				continue;
+			path[depth - 1] = c;
+
+			if(mDawg.isTerminal(node))
+			{
+				hash += 1;
+				float frequency = mFrequencies.get(hash);
+				if(depth >= APPROXIMATE_MIN_LENGTH && frequency >= PIECE_MIN_FREQUENCY)
+				{
+					// characters that spell a word are read as that word, found by the walks
+					String word = null;
+					for(int k = Math.max(1, depth - 1), last = Math.min(remaining, depth + 1); k <= last; k++)
+					{
+						float msd = rows[row + k];
+						if(msd == 0 || msd > SEGMENT_MAX_COST || edges.isExact(start, start + k))
+							continue;
+
+						float cost = a * msd / maxCost - b * frequency;
+						if(cost >= edges.costs[start][start + k])
+							continue;
+						if(word == null)
+							word = new String(path, 0, depth);
+						edges.offer(start, start + k, cost, msd, frequency, word);
+					}
+				}
+			}
+
+			if(depth < maxDepth)
+				push(node, depth + 1, hash, nodes, depths, hashes);
+		}
+		return true;
+	}
+
+	/*
+	 * Tells whether a word read from the characters between two positions can be a word of a split
+	 */
+	private static boolean isPiece(char[] letters, int from, int to, float frequency)
+	{
+		if(frequency < PIECE_MIN_FREQUENCY) return false;
+		return to - from > 1 || ONE_LETTER_WORDS.indexOf(letters[from]) >= 0;
+	}
+	
+	/*
+	 * The best word between each two positions of a run
+	 */
+	private static class Edges
+	{
+		final float[][] costs;
+		final float[][] msds;
+		final float[][] frequencies;
+		final String[][] words;
+
+		Edges(int length)
+		{
+			costs = new float[length + 1][length + 1];
+			msds = new float[length + 1][length + 1];
+			frequencies = new float[length + 1][length + 1];
+			words = new String[length + 1][length + 1];
+			for(float[] row : costs)
+				Arrays.fill(row, Float.POSITIVE_INFINITY);
+		}
+
+		boolean isExact(int from, int to)
+		{
+			return costs[from][to] != Float.POSITIVE_INFINITY && words[from][to] == null;
+		}
+
+		void offer(int from, int to, float cost, float msd, float frequency, String word)
+		{
+			if(cost >= costs[from][to])
+				return;
+			costs[from][to] = cost;
+			msds[from][to] = msd;
+			frequencies[from][to] = frequency;
+			words[from][to] = word;
+		}
+	}
+
+	private void push(int parent, int depth, int hash, IntStack nodes, IntStack depths, IntStack hashes)
+	{
+		int first = mDawg.firstChild(parent);
+		int end = first + mDawg.childCount(parent);
+		for(int child = first; child < end; child++)
+		{
+			nodes.push(child);
+			depths.push(depth);
+			hashes.push(hash);
+			hash += mDawg.wordCount(child);
+		}
+	}
+}
@@ -13,6 +13,11 @@ public class DataFormatException extends IOException
 	 */
 	private static final long serialVersionUID = 1L;
 
+	public DataFormatException (String message)
+	{
+		super (message);
+	}
+
 	public DataFormatException (String message, Throwable cause)
 	{
 		super (message, cause);
@@ -0,0 +1,111 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+
+package hugonicolau.openbrailleinput.wordcorrection.mafsa;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Binary min-heap of primitive ints ordered by a float priority, used by the best-first search. Priorities
+ * and values are kept in parallel growable arrays, so the queue never allocates once it has warmed up.
+ */
+public class IntPriorityQueue
+{
+  private float[] priorities;
+  private int[] values;
+  private int size = 0;
+
+  public IntPriorityQueue ()
+  {
+    this (64);
+  }
+
+  public IntPriorityQueue (int capacity)
+  {
+    priorities = new float[Math.max (1, capacity)];
+    values = new int[priorities.length];
+  }
+
+  public boolean empty ()
+  {
+    return 0 == size;
+  }
+
+  public int size ()
+  {
+    return size;
+  }
+
+  /**
+   * Returns the smallest priority in the queue.
+   */
+  public float peekPriority ()
+  {
+    if (size <= 0)
+      throw new NoSuchElementException ();
+
+    return priorities[0];
+  }
+
+  /**
+   * Removes the value with the smallest priority.
+   */
+  public int pop ()
+  {
+    if (size <= 0)
+      throw new NoSuchElementException ();
+
+    int top = values[0];
+    size--;
+
+    // sift the last entry down from the root
+    float priority = priorities[size];
+    int value = values[size];
+    int i = 0;
+    int child;
+    while ((child = 2 * i + 1) < size)
+    {
+      if (child + 1 < size && priorities[child + 1] < priorities[child])
+        child++;
+      if (priorities[child] >= priority)
+        break;
+
+      priorities[i] = priorities[child];
+      values[i] = values[child];
+      i = child;
+    }
+    priorities[i] = priority;
+    values[i] = value;
+
+    return top;
+  }
+
+  public void push (float priority, int value)
+  {
+    if (size == values.length)
+    {
+      priorities = Arrays.copyOf (priorities, size * 2);
+      values = Arrays.copyOf (values, size * 2);
+    }
+
+    // sift up from the new leaf
+    int i = size++;
+    while (i > 0)
+    {
+      int parent = (i - 1) / 2;
+      if (priorities[parent] <= priority)
+        break;
+
+      priorities[i] = priorities[parent];
+      values[i] = values[parent];
+      i = parent;
+    }
+    priorities[i] = priority;
+    values[i] = value;
+  }
+
+  public void clear ()
+  {
+    size = 0;
+  }
+}
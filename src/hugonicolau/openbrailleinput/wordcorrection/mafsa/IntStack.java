@@ -0,0 +1,66 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+
+package hugonicolau.openbrailleinput.wordcorrection.mafsa;
+
+import java.util.Arrays;
+import java.util.EmptyStackException;
+
+/**
+ * Stack of primitive ints, used for node offsets and depths while traversing the graph. Values are
+ * kept in a growable array, so pushing and popping never allocates once the stack has warmed up.
+ */
+public class IntStack
+{
+  private int[] entries;
+  private int size = 0;
+
+  public IntStack ()
+  {
+    this (64);
+  }
+
+  public IntStack (int capacity)
+  {
+    entries = new int[Math.max (1, capacity)];
+  }
+
+  public boolean empty ()
+  {
+    return 0 == size;
+  }
+
+  public int size ()
+  {
+    return size;
+  }
+
+  public int peek ()
+  {
+    if (size <= 0)
+      throw new EmptyStackException ();
+
+    return entries[size - 1];
+  }
+
+  public int pop ()
+  {
+    if (size <= 0)
+      throw new EmptyStackException ();
+
+    return entries[--size];
+  }
+
+  public int push (int entry)
+  {
+    if (size == entries.length)
+      entries = Arrays.copyOf (entries, size * 2);
+
+    entries[size++] = entry;
+    return entry;
+  }
+
+  public void clear ()
+  {
+    size = 0;
+  }
+}
@@ -0,0 +1,343 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+
+package hugonicolau.openbrailleinput.wordcorrection.mafsa;
+
+import java.util.Arrays;
+
+/**
+ * An automaton that tells, from the characters of a dawg path alone, whether the path can still lead to a
+ * word within maxCost of a query, without computing weighted rows.
+ *
+ * Costs are counted in units of the insertion cost, rounding every operation down: skipping a typed
+ * character costs 1 unit, omitting a character ow / iw units, substituting a character at distance d
+ * sw * d / iw units and skipping typed characters before the first character 1 / iw units. No path is ever
+ * charged more than its weighted cost, so once the automaton runs out of units the path can't reach a word
+ * within maxCost. For each number of units a bitmask holds the prefixes of the typed word the path can align
+ * with, so the automaton is bounded only for words of up to MAX_WORD_LENGTH characters.
+ *
+ * The bitmasks are stepped through states that are numbered as they are reached. A state's transitions are
+ * kept in a table by character class, characters with the same masks sharing a class, so once a state and
+ * class have been seen a step is a table lookup.
+ */
+public class LevenshteinAutomaton
+{
+  // positions 0 to length of the typed word, in a long
+  public static final int MAX_WORD_LENGTH = 62;
+
+  // no word below can be within maxCost
+  public static final int DEAD = -1;
+
+  // the automaton doesn't bound the search: always alive and accepting
+  public static final int UNBOUNDED = 0;
+
+  // float rows may round a little below the exact costs
+  private static final double ROUNDING = 1e-3;
+
+  // states kept before the automaton stops numbering new ones
+  private static final int MAX_STATES = 1 << 14;
+
+  private static final int UNKNOWN = -2;
+
+  private final boolean bounded;
+  private final int length;
+  private final int levels;
+  private final int leadingSkip;
+  private final int omission;
+  private final int[] substitution;
+  private final long full;
+  private final long accept;
+
+  private final MSDQuery query;
+
+  // masks of each character class, one per substitution distance
+  private long[] classMasks;
+  private int classCount = 0;
+  private final int[] slotClasses;
+  private final long[] scratch;
+
+  // masks of each numbered state, one per unit level, and the transitions by class
+  private long[] stateMasks;
+  private int[][] transitions;
+  private int stateCount = 1;
+  private int[] stateTable;
+
+  public LevenshteinAutomaton (MSDQuery query, int maxCost)
+  {
+    this.query = query;
+    this.length = query.chars.length;
+    this.bounded = length <= MAX_WORD_LENGTH && query.insertionCost > 0;
+
+    double unit = query.insertionCost;
+    int budget = bounded ? (int) Math.floor (maxCost / unit + ROUNDING) : 0;
+    this.levels = budget + 1;
+    this.leadingSkip = bounded ? units (1, unit) : 0;
+    this.omission = bounded ? units (query.omissionCost, unit) : 0;
+
+    // substitutions that fit the budget, by distance
+    int distances = 0;
+    while (bounded && units (query.substitutionCost * distances, unit) <= budget)
+      distances++;
+    substitution = new int[distances];
+    for (int d = 0; d < distances; d++)
+      substitution[d] = units (query.substitutionCost * d, unit);
+
+    full = bounded ? (1L << (length + 1)) - 1 : 0;
+    accept = bounded ? 1L << length : 0;
+
+    // slots whose characters all have the same masks share a class
+    int slotCount = query.distance.getSlotCount ();
+    slotClasses = new int[slotCount];
+    scratch = new long[distances];
+    classMasks = new long[Math.max (1, 8 * distances)];
+    for (int slot = 0; slot < slotCount; slot++)
+    {
+      if (!bounded || query.distance.getSlotDistance (slot, slot) != 0)
+      {
+        slotClasses[slot] = -1;
+        continue;
+      }
+      Arrays.fill (scratch, 0);
+      fill (scratch, (char) 0, slot);
+      slotClasses[slot] = classOf (scratch);
+    }
+
+    stateMasks = new long[levels * 64];
+    transitions = new int[64][];
+    stateTable = new int[128];
+    Arrays.fill (stateTable, -1);
+  }
+
+  /**
+   * Tells whether the automaton can prune at all. When it can't, start() is UNBOUNDED.
+   */
+  public boolean bounded ()
+  {
+    return bounded;
+  }
+
+  /*
+   * Fills the masks of the empty path
+   */
+  private void start (long[] masks, int offset)
+  {
+    for (int e = 0; e < levels; e++)
+    {
+      int reach = leadingSkip == 0 ? length : Math.min (length, e / leadingSkip);
+      masks[offset + e] = (1L << (reach + 1)) - 1;
+    }
+  }
+
+  /*
+   * Fills the masks of a path from the masks of its parent path: substitute (or match), omit, then skip
+   * typed characters
+   */
+  private void step (long[] masks, int previous, int current, char c)
+  {
+    int offset = classOf (c) * substitution.length;
+    long[] classMasks = this.classMasks;
+    for (int e = 0; e < levels; e++)
+      masks[current + e] = (masks[previous + e] << 1) & classMasks[offset];
+    for (int d = 1; d < substitution.length; d++)
+      for (int e = substitution[d]; e < levels; e++)
+        masks[current + e] |= (masks[previous + e - substitution[d]] << 1) & classMasks[offset + d];
+    for (int e = omission; e < levels; e++)
+      masks[current + e] |= masks[previous + e - omission];
+    masks[current] &= full;
+    for (int e = 1; e < levels; e++)
+      masks[current + e] = (masks[current + e] | masks[current + e - 1] << 1) & full;
+  }
+
+  /*
+   * Tells whether a path with these masks can still lead to a word within maxCost
+   */
+  private boolean alive (long[] masks, int offset)
+  {
+    return masks[offset + levels - 1] != 0;
+  }
+
+  /*
+   * Tells whether a word with these masks may be within maxCost
+   */
+  private boolean accepts (long[] masks, int offset)
+  {
+    return (masks[offset + levels - 1] & accept) != 0;
+  }
+
+  /**
+   * Returns the state of the empty path.
+   */
+  public int start ()
+  {
+    if (!bounded)
+      return UNBOUNDED;
+
+    start (stateMasks, levels);
+    return intern (1);
+  }
+
+  /**
+   * Returns the state after a character, DEAD if no word below can be within maxCost.
+   */
+  public int next (int state, char c)
+  {
+    if (state == UNBOUNDED)
+      return UNBOUNDED;
+
+    int cls = classOf (c);
+    int[] row = transitions[state];
+    if (row != null && cls < row.length && row[cls] != UNKNOWN)
+      return row[cls];
+
+    // a new state is stepped into the free slot after the numbered ones
+    int next;
+    if (stateCount + 1 >= MAX_STATES)
+    {
+      next = UNBOUNDED;
+    }
+    else
+    {
+      ensureStates (stateCount + 1);
+      step (stateMasks, state * levels, stateCount * levels, c);
+      next = alive (stateMasks, stateCount * levels) ? intern (stateCount) : DEAD;
+    }
+
+    if (row == null || cls >= row.length)
+    {
+      int size = row == null ? Math.max (8, classCount) : Math.max (cls + 1, row.length * 2);
+      int from = row == null ? 0 : row.length;
+      row = row == null ? new int[size] : Arrays.copyOf (row, size);
+      Arrays.fill (row, from, size, UNKNOWN);
+      transitions[state] = row;
+    }
+    row[cls] = next;
+    return next;
+  }
+
+  /**
+   * Tells whether a word ending in this state may be within maxCost.
+   */
+  public boolean accepts (int state)
+  {
+    return state == UNBOUNDED || accepts (stateMasks, state * levels);
+  }
+
+  /*
+   * Numbers the masks stepped into a free state, unless an equal state already has a number
+   */
+  private int intern (int candidate)
+  {
+    int offset = candidate * levels;
+    int mask = stateTable.length - 1;
+    for (int i = hash (offset) & mask; ; i = (i + 1) & mask)
+    {
+      int state = stateTable[i];
+      if (state < 0)
+      {
+        stateTable[i] = candidate;
+        stateCount = candidate + 1;
+        if (2 * stateCount > stateTable.length)
+          rehash ();
+        return candidate;
+      }
+      if (equal (state * levels, offset))
+        return state;
+    }
+  }
+
+  private void rehash ()
+  {
+    stateTable = new int[stateTable.length * 2];
+    Arrays.fill (stateTable, -1);
+    int mask = stateTable.length - 1;
+    for (int state = 1; state < stateCount; state++)
+    {
+      int i = hash (state * levels) & mask;
+      while (stateTable[i] >= 0)
+        i = (i + 1) & mask;
+      stateTable[i] = state;
+    }
+  }
+
+  private int hash (int offset)
+  {
+    long h = 0;
+    for (int e = 0; e < levels; e++)
+      h = h * 31 + stateMasks[offset + e];
+    int hash = (int) (h ^ (h >>> 32));
+    return hash ^ (hash >>> 16);
+  }
+
+  private boolean equal (int offset1, int offset2)
+  {
+    for (int e = 0; e < levels; e++)
+      if (stateMasks[offset1 + e] != stateMasks[offset2 + e])
+        return false;
+    return true;
+  }
+
+  private void ensureStates (int count)
+  {
+    if (count * levels > stateMasks.length)
+      stateMasks = Arrays.copyOf (stateMasks, Math.max (count * levels, stateMasks.length * 2));
+    if (count > transitions.length)
+      transitions = Arrays.copyOf (transitions, Math.max (count, transitions.length * 2));
+  }
+
+  /*
+   * Returns the class of a character, numbering a new class for masks not seen before
+   */
+  private int classOf (char c)
+  {
+    int slot = query.distance.getSlot (c);
+    if (slot >= 0 && slotClasses[slot] >= 0)
+      return slotClasses[slot];
+
+    Arrays.fill (scratch, 0);
+    fill (scratch, c, slot);
+    return classOf (scratch);
+  }
+
+  private int classOf (long[] masks)
+  {
+    int distances = masks.length;
+    for (int cls = 0; cls < classCount; cls++)
+    {
+      boolean same = true;
+      for (int d = 0; d < distances && same; d++)
+        same = classMasks[cls * distances + d] == masks[d];
+      if (same)
+        return cls;
+    }
+
+    if ((classCount + 1) * distances > classMasks.length)
+      classMasks = Arrays.copyOf (classMasks, Math.max ((classCount + 1) * distances, classMasks.length * 2));
+    System.arraycopy (masks, 0, classMasks, classCount * distances, distances);
+    return classCount++;
+  }
+
+  /*
+   * Sets, for each distance, the positions after the typed characters at that distance from a character
+   */
+  private void fill (long[] masks, char c, int slot)
+  {
+    char[] chars = query.chars;
+    for (int i = 0; i < chars.length; i++)
+    {
+      int d;
+      if (chars[i] == c)
+        d = 0;
+      else if (slot >= 0 && query.slots[i] >= 0)
+        d = query.distance.getSlotDistance (query.slots[i], slot);
+      else
+        continue;
+
+      if (d < masks.length)
+        masks[d] |= 1L << (i + 1);
+    }
+  }
+
+  private static int units (double cost, double unit)
+  {
+    return Math.max (0, (int) Math.floor (cost / unit - ROUNDING));
+  }
+}
@@ -1,15 +1,24 @@
 // LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
 package hugonicolau.openbrailleinput.wordcorrection.mafsa;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.ReaderInputStream;
 import org.apache.commons.io.output.WriterOutputStream;
 
 import android.annotation.SuppressLint;
 import hugonicolau.openbrailleinput.wordcorrection.ChordDistances;
 import hugonicolau.openbrailleinput.wordcorrection.Distance;
+import hugonicolau.openbrailleinput.wordcorrection.FrequencyTable;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An implementation of a Directed Acycilic Word Graph (DAWG), also known as 
@@ -20,19 +29,99 @@ import java.util.*;
 @SuppressLint("DefaultLocale")
 public class MAFSA
 {
-	protected long[] nodes;
+	/*
+	 * Binary format (little endian), version 1:
+	 * 
+	 * 4 bytes		: magic "MAFS"
+	 * 4 bytes		: format version
+	 * 4 bytes		: node count (n)
+	 * 4 bytes		: reserved
+	 * n * 8 bytes	: nodes, as encoded by Node.toLong ()
+	 * n bytes		: sibling run lengths (see countChildren)
+	 * 
+	 * Version 2 has the same header, then one array per field, for dawgs with more nodes or words than
+	 * Node.toLong () can encode:
+	 * 
+	 * n * 4 bytes	: first child offsets, -1 for none
+	 * n * 4 bytes	: word counts
+	 * n * 2 bytes	: characters
+	 * n bytes		: flags, LAST_CHILD_FLAG and TERMINAL_FLAG
+	 * n bytes		: sibling run lengths
+	 * 
+	 * Version 1 is written whenever the dawg fits, as it takes 9 bytes per node instead of 12.
+	 */
+	private static final int MAGIC = 0x5346414D; // "MAFS" read as a little endian int
+	private static final int VERSION = 1;
+	private static final int SPLIT_VERSION = 2;
+	private static final int HEADER_SIZE = 16;
+	private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+	
+	static final byte LAST_CHILD_FLAG = 0x1;
+	static final byte TERMINAL_FLAG = 0x2;
+	
+	// version 1 nodes, null in version 2
+	protected LongBuffer nodes;
+	
+	// version 2 nodes, null in version 1
+	protected IntBuffer firstChildren;
+	protected IntBuffer wordCounts;
+	protected CharBuffer chars;
+	protected ByteBuffer flags;
+	
+	protected ByteBuffer childCounts; // length of each sibling run, stored at the offset of its first node
 
 	protected MAFSA () {}
 
 	/**
 	 * Used by DawgBuilder to create a new Dawg instance from the backing int array.  Not for general use.  Use one of the
-	 * factory methods of Dawg to created your Dawg.
+	 * factory methods of Dawg to created your Dawg.  The array is used as is, not copied.
 	 *
 	 * @param ints the integer array that this instance will use.
 	 */
 	protected MAFSA (long[] longs)
 	{
-		nodes = longs.clone ();
+		this.nodes = LongBuffer.wrap (longs);
+		this.childCounts = ByteBuffer.wrap (countChildren ());
+	}
+
+	protected MAFSA (LongBuffer nodes, ByteBuffer childCounts)
+	{
+		this.nodes = nodes;
+		this.childCounts = childCounts;
+	}
+
+	/**
+	 * Used by MAFSABuilder for dawgs too large for version 1.  The arrays are used as is, not copied.
+	 */
+	protected MAFSA (int[] firstChildren, int[] wordCounts, char[] chars, byte[] flags)
+	{
+		this.firstChildren = IntBuffer.wrap (firstChildren);
+		this.wordCounts = IntBuffer.wrap (wordCounts);
+		this.chars = CharBuffer.wrap (chars);
+		this.flags = ByteBuffer.wrap (flags);
+		this.childCounts = ByteBuffer.wrap (countChildren ());
+	}
+
+	protected MAFSA (IntBuffer firstChildren, IntBuffer wordCounts, CharBuffer chars, ByteBuffer flags, 
+			ByteBuffer childCounts)
+	{
+		this.firstChildren = firstChildren;
+		this.wordCounts = wordCounts;
+		this.chars = chars;
+		this.flags = flags;
+		this.childCounts = childCounts;
+	}
+
+	/**
+	 * Returns a dawg that shares the nodes of this one, with search buffers of its own. Searches keep their
+	 * state in the dawg, so each thread searching at the same time needs its own duplicate.
+	 */
+	public MAFSA duplicate ()
+	{
+		if (null != nodes)
+			return new MAFSA (nodes.duplicate (), childCounts.duplicate ());
+		return new MAFSA (firstChildren.duplicate (), wordCounts.duplicate (), chars.duplicate (), flags.duplicate (), 
+				childCounts.duplicate ());
 	}
 
 	/**
@@ -52,17 +141,97 @@ public class MAFSA
 	 * the stream is not closed.
 	 *
 	 * @param os the OutputStream to write the dawg to
-	 * @throws IOException if writing the dawg to the stream causes an IOException
+	 * @throws IOException if writing the dawg to the stream causes an IOException, or if the dawg is too large to
+	 * be serialized as Node.toLong () encodes it
 	 */
 	public void store (OutputStream os) throws IOException
 	{
+		if (null == nodes)
+			throw new IOException ("Dawg too large for the serialized format, store it in the binary format");
+		
 		BufferedOutputStream bos = new BufferedOutputStream (os, 8 * 1024);
 		ObjectOutputStream oos = new ObjectOutputStream (bos);
     
-		oos.writeObject (nodes);
+		long[] longs = new long[nodeCount ()];
+		nodes.duplicate ().get (longs);
+		
+		oos.writeObject (longs);
 		oos.flush ();
 	}
 
+	/**
+	 * Writes an instance of a dawg to an OutputStream in the binary format, the one that can be mapped with
+	 * {@link #map(File)}.  Dawgs loaded from version 2 are written in version 2.  Once the data is written to the
+	 * OutputStream, it is flushed, but the stream is not closed.
+	 *
+	 * @param os the OutputStream to write the dawg to
+	 * @throws IOException if writing the dawg to the stream causes an IOException
+	 */
+	public void storeBinary (OutputStream os) throws IOException
+	{
+		int count = nodeCount ();
+		ByteBuffer buffer = ByteBuffer.allocate (8 * 1024);
+		buffer.order (BYTE_ORDER);
+		
+		buffer.putInt (MAGIC);
+		buffer.putInt (null != nodes ? VERSION : SPLIT_VERSION);
+		buffer.putInt (count);
+		buffer.putInt (0);
+		
+		if (null != nodes)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				if (buffer.remaining () < 8)
+					drain (buffer, os);
+				buffer.putLong (nodes.get (i));
+			}
+		}
+		else
+		{
+			for (int i = 0; i < count; i++)
+			{
+				if (buffer.remaining () < 4)
+					drain (buffer, os);
+				buffer.putInt (firstChildren.get (i));
+			}
+			for (int i = 0; i < count; i++)
+			{
+				if (buffer.remaining () < 4)
+					drain (buffer, os);
+				buffer.putInt (wordCounts.get (i));
+			}
+			for (int i = 0; i < count; i++)
+			{
+				if (buffer.remaining () < 2)
+					drain (buffer, os);
+				buffer.putChar (chars.get (i));
+			}
+			for (int i = 0; i < count; i++)
+			{
+				if (!buffer.hasRemaining ())
+					drain (buffer, os);
+				buffer.put (flags.get (i));
+			}
+		}
+		
+		for (int i = 0; i < count; i++)
+		{
+			if (!buffer.hasRemaining ())
+				drain (buffer, os);
+			buffer.put (childCounts.get (i));
+		}
+		
+		drain (buffer, os);
+		os.flush ();
+	}
+	
+	private static void drain (ByteBuffer buffer, OutputStream os) throws IOException
+	{
+		os.write (buffer.array (), 0, buffer.position ());
+		buffer.clear ();
+	}
+
 	/**
 	 * Factory method.  Creates a new Dawg entry by reading in data from the given Reader.  Once the data is read, the
 	 * reader remains open.
@@ -79,7 +248,8 @@ public class MAFSA
 
  	/**
  	 * Factory method.  Creates a new Dawg entry by reading in data from the given InputStream.  Once the data is read,
- 	 * the stream remains open.
+ 	 * the stream remains open.  Both the serialized and the binary formats are accepted; prefer {@link #map(File)}
+ 	 * for binary files.
  	 *
  	 * @param is the stream with the data to create the Dawg instance.
  	 * @return a new Dawg instance with the data loaded
@@ -89,6 +259,10 @@ public class MAFSA
 	public static MAFSA load (InputStream is) throws IOException
 	{
 	    BufferedInputStream bis = new BufferedInputStream (is, 8 * 1024);
+	    
+	    if (isBinary (bis))
+	    	return read (ByteBuffer.wrap (IOUtils.toByteArray (bis)));
+	    
 	    ObjectInputStream ois = new ObjectInputStream (bis);
 
 	    long[] longs;
@@ -105,6 +279,118 @@ public class MAFSA
 	    return new MAFSA (longs);
 	}
 
+	/**
+	 * Factory method.  Maps a dawg stored in the binary format straight from the file.  Nodes are read through the
+	 * mapping, nothing is deserialized or copied.
+	 *
+	 * @param file the file written by {@link #storeBinary(OutputStream)}
+	 * @return a new Dawg instance backed by the file
+	 * @throws DataFormatException if the file isn't a binary dawg of a supported version
+	 * @throws IOException if mapping the file causes an IOException
+	 */
+	public static MAFSA map (File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile (file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel ();
+			// the mapping stays valid after the channel is closed
+			return read (channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ()));
+		}
+		finally
+		{
+			raf.close ();
+		}
+	}
+
+	/**
+	 * Converts a serialized dawg, as shipped in the raw resources, to a binary file that can then be mapped.  The file
+	 * is written next to its destination and renamed, so a partial conversion never replaces a good file.
+	 *
+	 * @param is the stream with the serialized dawg
+	 * @param file the binary file to create
+	 * @throws IOException if reading the dawg or writing the file causes an IOException
+	 */
+	public static void convert (InputStream is, File file) throws IOException
+	{
+		MAFSA mafsa = load (is);
+		
+		File temp = new File (file.getPath () + ".tmp");
+		OutputStream os = new BufferedOutputStream (new FileOutputStream (temp), 8 * 1024);
+		try
+		{
+			mafsa.storeBinary (os);
+		}
+		finally
+		{
+			os.close ();
+		}
+		
+		if (!temp.renameTo (file))
+		{
+			temp.delete ();
+			throw new IOException ("Couldn't write " + file);
+		}
+	}
+	
+	private static boolean isBinary (BufferedInputStream bis) throws IOException
+	{
+		byte[] magic = new byte[4];
+		
+		bis.mark (magic.length);
+		int read = IOUtils.read (bis, magic);
+		bis.reset ();
+		
+		return read == magic.length && ByteBuffer.wrap (magic).order (BYTE_ORDER).getInt () == MAGIC;
+	}
+	
+	private static MAFSA read (ByteBuffer buffer) throws DataFormatException
+	{
+		buffer.order (BYTE_ORDER);
+		
+		if (buffer.capacity () < HEADER_SIZE || buffer.getInt (0) != MAGIC)
+			throw new DataFormatException ("Bad file.  Not a binary MAFSA");
+		
+		int version = buffer.getInt (4);
+		int count = buffer.getInt (8);
+		if (VERSION == version)
+		{
+			if (buffer.capacity () < HEADER_SIZE + 9L * count)
+				throw new DataFormatException ("Bad file.  Truncated MAFSA");
+			
+			LongBuffer nodes = section (buffer, HEADER_SIZE, 8 * count).asLongBuffer ();
+			ByteBuffer childCounts = section (buffer, HEADER_SIZE + 8 * count, count);
+			return new MAFSA (nodes, childCounts);
+		}
+		else if (SPLIT_VERSION == version)
+		{
+			if (buffer.capacity () < HEADER_SIZE + 12L * count)
+				throw new DataFormatException ("Bad file.  Truncated MAFSA");
+			
+			int offset = HEADER_SIZE;
+			IntBuffer firstChildren = section (buffer, offset, 4 * count).asIntBuffer ();
+			offset += 4 * count;
+			IntBuffer wordCounts = section (buffer, offset, 4 * count).asIntBuffer ();
+			offset += 4 * count;
+			CharBuffer chars = section (buffer, offset, 2 * count).asCharBuffer ();
+			offset += 2 * count;
+			ByteBuffer flags = section (buffer, offset, count);
+			offset += count;
+			ByteBuffer childCounts = section (buffer, offset, count);
+			return new MAFSA (firstChildren, wordCounts, chars, flags, childCounts);
+		}
+		
+		throw new DataFormatException ("Unsupported MAFSA version " + version);
+	}
+	
+	private static ByteBuffer section (ByteBuffer buffer, int offset, int length)
+	{
+		ByteBuffer section = buffer.duplicate ();
+		section.position (offset);
+		section.limit (offset + length);
+		return section.slice ().order (BYTE_ORDER);
+	}
+
 	/**
 	 * Returns the number of nodes in this dawg.
 	 *
@@ -112,12 +398,12 @@ public class MAFSA
 	 */
 	public int nodeCount ()
 	{
-		return nodes.length;
+		return null != nodes ? nodes.limit () : chars.limit ();
 	}
 	
 	public int wordCount()
 	{
-		return getMPH(nodes[0]);
+		return wordCount(0);
 	}
 
 	/**
@@ -133,7 +419,7 @@ public class MAFSA
 
 		char[] letters = word.toUpperCase ().toCharArray ();
 
-		long ptr = nodes[0];
+		int ptr = 0;
 
 		for (char c: letters)
 		{
@@ -142,71 +428,132 @@ public class MAFSA
 				return false;
 		}
 
-		return canTerminate (ptr);
+		return isTerminal (ptr);
 	}
 	
 	public int wordToHash(String word)
 	{
-		int mph = 0;
-		
 		char[] letters = word.toUpperCase ().toCharArray ();
+		return wordToHash(letters, letters.length);
+	}
+	
+	/**
+	 * Returns the hash of a word spelled as in the dawg, in upper case.
+	 */
+	public int wordToHash(char[] letters, int length)
+	{
+		return wordToHash(letters, 0, length);
+	}
+	
+	/**
+	 * Returns the hash of the letters from one position to another, spelled as in the dawg, in upper case.
+	 */
+	public int wordToHash(char[] letters, int from, int to)
+	{
+		int mph = 0;
 		
-		long current = nodes[0];
-		long next = -1;
+		int current = 0;
 		
-		for (char c: letters)
+		for (int i = from; i < to; i++)
 		{
+			char c = letters[i];
 			// get next child
-			next = findChild (current, c);
+			int next = findChild (current, c);
 			
 			if (-1 == next)
 			{
 				// word does not exist
 				return -1;
 			}
-			else
+			
+			// go through all previous siblings to calculate mph
+			for (int sibling = firstChild (current); sibling < next; sibling++)
+				mph += wordCount(sibling);
+			
+			current = next;
+			if(isTerminal(current))
 			{
-				// go through all previous siblings to calculate mph
-				for (Iterator<Long> iter = childIterator (current); iter.hasNext ();)
-				{
-					long child = iter.next();
-					if(getChar(child) < c) mph += getMPH(child);
-					else break;
-					
-				}
-				
-				current = next;
-				if(canTerminate(current))
-				{
-					mph += 1;
-				}
+				mph += 1;
 			}
 		}
 		
-		if(canTerminate(current))
+		if(isTerminal(current))
 			return mph;
 		else 
 			return -1;
 	}
   
+	/**
+	 * Walks a word once from the root, finding which of its prefixes are words.
+	 *
+	 * @param letters the word, spelled as in the dawg, in upper case
+	 * @param length the number of letters
+	 * @param hashes receives, at index i, the hash of the prefix of i + 1 letters, or -1 if it isn't a word
+	 * @return the number of letters the dawg has a path for
+	 */
+	public int prefixHashes(char[] letters, int length, int[] hashes)
+	{
+		return prefixHashes(letters, 0, length, hashes);
+	}
+	
+	/**
+	 * Walks the letters from one position on once from the root, finding which of the words starting there
+	 * are in the dawg.
+	 *
+	 * @param hashes receives, at index i, the hash of the letters from the first position up to i, or -1 if
+	 * 				they aren't a word
+	 * @return the number of letters the dawg has a path for
+	 */
+	public int prefixHashes(char[] letters, int from, int to, int[] hashes)
+	{
+		int mph = 0;
+		int current = 0;
+		
+		for (int i = from; i < to; i++)
+		{
+			int next = findChild (current, letters[i]);
+			if (-1 == next)
+			{
+				Arrays.fill(hashes, i, to, -1);
+				return i - from;
+			}
+			
+			for (int sibling = firstChild (current); sibling < next; sibling++)
+				mph += wordCount(sibling);
+			
+			current = next;
+			if (isTerminal(current))
+			{
+				mph += 1;
+				hashes[i] = mph;
+			}
+			else
+			{
+				hashes[i] = -1;
+			}
+		}
+		return to - from;
+	}
+	
   public String hashToWord(int number)
   {
 	  
-	  long current = nodes[0];
+	  int current = 0;
 	  
 	  // word does not exist
-	  if(number < 0 || number > getMPH(current)) return null;
+	  if(number < 0 || number > wordCount(current)) return null;
 	  
-	  String word = "";
+	  StringBuilder word = new StringBuilder();
 	  int count = number;
 	  
 	  do
 	  {
 		  // go through all children
-		  for (Iterator<Long> iter = childIterator (current); iter.hasNext ();)
+		  int first = firstChild (current);
+		  int end = first + childCount (current);
+		  for (int child = first; child < end; child++)
 		  {
-			  long child = iter.next();
-			  int childMPH = getMPH(child);
+			  int childMPH = wordCount(child);
 			  
 			  if( childMPH < count)
 			  {
@@ -215,10 +562,10 @@ public class MAFSA
 			  else
 			  {
 				  // this is the correct child
-				  word += getChar(child);
+				  word.append(charOf(child));
 				  
 				  current = child;
-				  if(canTerminate(current)) count -= 1;
+				  if(isTerminal(current)) count -= 1;
 				  
 				  break;
 			  }
@@ -226,7 +573,7 @@ public class MAFSA
 	  }
 	  while(count > 0);
 	  
-	  return word;
+	  return word.toString();
   }
 	
 	/* ************* */
@@ -241,7 +588,7 @@ public class MAFSA
 	  
 	  char[] letters = prefix.toUpperCase ().toCharArray ();
 	
-	  long ptr = nodes[0];
+	  int ptr = 0;
 	
 	  for (char c: letters)
 	  {
@@ -250,24 +597,31 @@ public class MAFSA
 	        return results.toArray(new String[results.size()]);
 	  }
 	  
+	  // current node is a valid word
+	  if (isTerminal(ptr))
+		  results.add(String.valueOf(letters));
+	  
 	  // iteratively (to prevent stack overflow) search each branch of the graph
-	  Stack<StackEntry> stack = new Stack<StackEntry> ();  // a stack of paths to traverse. This prevents the StackOverflowException.
-	  stack.push (new StackEntry (ptr, prefix.toUpperCase().toCharArray (), ""));
+	  int depth = letters.length;
+	  System.arraycopy(letters, 0, path(depth), 0, depth);
+	  mNodeStack.clear();
+	  mDepthStack.clear();
+	  pushChildren(ptr, depth + 1);
 	  
-	  while (!stack.empty ())
+	  while (!mNodeStack.empty())
 	  {
-		  StackEntry entry = stack.pop ();
+		  int node = mNodeStack.pop();
+		  depth = mDepthStack.pop();
+		  
+		  char[] path = path(depth);
+		  path[depth - 1] = charOf(node);
 	
 		  // if current node is a valid word
-		  if (canTerminate(entry.node)) {
-	          results.add(String.valueOf(entry.chars) + entry.subword);
+		  if (isTerminal(node)) {
+	          results.add(new String(path, 0, depth));
 	      }
 	
-		  for (Iterator<Long> iter = childIterator (entry.node); iter.hasNext ();)
-		  {
-			  long child = iter.next ();
-			  stack.push(new StackEntry(child, entry.chars, entry.subword + getChar(child)));
-		  }
+		  pushChildren(node, depth + 1);
 	  }
 	  
 	  return results.toArray(new String[results.size()]);
@@ -275,104 +629,380 @@ public class MAFSA
 	
 	
 	/**
-	 * Given a sequence of characters return the most probable valid words
+	 * Given a sequence of characters return the most probable valid words, searching for at most 500 ms
 	 * 
 	 * 
 	 */
-	private boolean mAreTimeAvailable = true;
-	private TimerTask mTimerTask = null;
-	private Timer mTimer = null;
 	public Set<SuggestionResult> searchMSD(String transWord, int maxCost, float insertionCost, float substitutionCost, 
 			  float omissionCost, Distance distance)
 	{
+		final Set<SuggestionResult> results = new HashSet<SuggestionResult>();
+		searchMSD(transWord, maxCost, insertionCost, substitutionCost, omissionCost, distance, 
+				System.nanoTime() + DEFAULT_SEARCH_BUDGET, new SuggestionCollector() 
+		{
+			@Override
+			public void collect(char[] word, int length, float msd, int hash) 
+			{
+				results.add(new SuggestionResult(new String(word, 0, length), msd, hash));
+			}
+		});
+		return results;
+	}
+	
+	/**
+	 * Given a sequence of characters find the most probable valid words until a deadline. When time runs out
+	 * the words found so far have already been collected.
+	 * 
+	 * @param deadline the System.nanoTime() at which the search stops
+	 * @param results receives each word within maxCost, with its msd
+	 * @return true if the whole dawg was searched, false if the deadline stopped the search
+	 */
+	public boolean searchMSD(String transWord, int maxCost, float insertionCost, float substitutionCost, 
+			  float omissionCost, Distance distance, long deadline, SuggestionCollector results)
+	{
+		return searchMSD(new MSDQuery(transWord, insertionCost, substitutionCost, omissionCost, distance), 
+				maxCost, deadline, results);
+	}
+	
+	/**
+	 * Same as {@link #searchMSD(String, int, float, float, float, Distance, long, SuggestionCollector)} for a 
+	 * word already compiled into a query.
+	 */
+	public boolean searchMSD(MSDQuery query, int maxCost, long deadline, SuggestionCollector results)
+	{
+		return searchMSD(query, maxCost, deadline, results, null, true);
+	}
+	
+	// depth of the branches workers share a search by
+	public static final int SPLIT_DEPTH = 2;
+	
+	/**
+	 * Searches the share of one worker of a search split among several. The branches below SPLIT_DEPTH are
+	 * claimed one at a time from a counter shared by the workers, as each meets them in the same order, so a
+	 * worker that drew small branches goes on to claim more. Words shorter than SPLIT_DEPTH are collected by
+	 * the worker with shortWords set.
+	 * 
+	 * @param branches counter shared by the workers, starting at 0, or null to search every branch
+	 * @param shortWords whether to collect the words shorter than SPLIT_DEPTH
+	 */
+	public boolean searchMSD(MSDQuery query, int maxCost, long deadline, SuggestionCollector results, 
+			AtomicInteger branches, boolean shortWords)
+	{
+		// the automaton prunes branches with table lookups, rows are only computed for the words it accepts
+		LevenshteinAutomaton automaton = new LevenshteinAutomaton(query, maxCost);
+		
 		// build first row
-		List<Float> row = range(transWord.length() + 1);
-	  
-		// results
-		Set<SuggestionResult> results = new HashSet<SuggestionResult>();
+		int columns = query.columns;
+		prepareRows(columns);
+		query.firstRow(mRows, 0);
+		
+		// rows of the current path are valid from the root down to this depth
+		int validDepth = 0;
 	  
 		// iteratively (to prevent stack overflow) search each branch of the graph
-		// a stack of paths to traverse. This prevents the StackOverflowException.
-		Stack<StackLevenshteinEntry> stack = new Stack<StackLevenshteinEntry> (); 
-		for (Iterator<Long> iter = childIterator (nodes[0]); iter.hasNext ();)
+		// a stack of node offsets to traverse. This prevents the StackOverflowException.
+		mNodeStack.clear();
+		mDepthStack.clear();
+		mHashStack.clear();
+		mStateStack.clear();
+		pushChildren(0, 1, 0, automaton.start());
+		
+		// the clock is read once every DEADLINE_CHECK_INTERVAL expanded nodes
+		int expanded = 0;
+		
+		// the branch this worker claimed, and the number of branches met so far
+		int claimed = branches == null ? 0 : branches.getAndIncrement();
+		int branch = 0;
+	  
+		while (!mNodeStack.empty())
 		{
-			long child = iter.next ();
-			char c = getChar(child);
+			if((++expanded & (DEADLINE_CHECK_INTERVAL - 1)) == 0 && System.nanoTime() - deadline >= 0)
+			{
+				//Log.v(BrailleSpellCheckerService.TAG, "Search Interrupted!");
+				return false;
+			}
+			
+			int node = mNodeStack.pop();
+			int depth = mDepthStack.pop();
+			int hash = mHashStack.pop();
+			int state = mStateStack.pop();
+			
+			if(branches != null && depth == SPLIT_DEPTH)
+			{
+				// another worker's branch
+				if(branch++ != claimed)
+					continue;
+				claimed = branches.getAndIncrement();
+			}
+			
+			char c = charOf(node);
+			
+			// no word below is within maxCost
+			state = automaton.next(state, c);
+			if(state == LevenshteinAutomaton.DEAD)
+				continue;
+			
+			// the path buffer holds the characters from the root down to this node
+			char[] path = path(depth);
+			path[depth - 1] = c;
+			
+			// rows below the parent belong to another path
+			if(validDepth > depth - 1)
+				validDepth = depth - 1;
+			
+			// the word's hash follows the hashes of everything before it in the dawg
+			boolean terminal = isTerminal(node);
+			if(terminal)
+				hash += 1;
+			
+			if(state == LevenshteinAutomaton.UNBOUNDED || (terminal && automaton.accepts(state)))
+			{
+				// rows live in the slab, one per depth; the parent row is always the one right above
+				// build one row for each letter, with a column for each letter in the target word, 
+				// plus one for the empty string at column 0
+				float rowMin = 0;
+				for(; validDepth < depth; validDepth++)
+					rowMin = query.row(mRows, rowOffset(validDepth), rowOffset(validDepth + 1), path[validDepth]);
+				float last = mRows[rowOffset(depth) + columns - 1];
+				
+				// if last entry in the row indicates the optimal cost is less than the maximum cost,
+				// and there is a word in this node, then add it.
+				if(terminal && last <= maxCost && (shortWords || depth >= SPLIT_DEPTH))
+					results.collect(path, depth, last, hash);
+				
+				// if no entries in the row are less than the maximum cost, no branch is searched
+				if(rowMin > maxCost)
+					continue;
+			}
 		  
-			StackLevenshteinEntry entry = new StackLevenshteinEntry (child, transWord.toUpperCase().toCharArray(), 
-				  String.valueOf(c), row);
-			stack.push(entry);
+			pushChildren(node, depth + 1, hash, state);
 		}
+
+		return true;
+  	}
+	
+	public static final long DEFAULT_SEARCH_BUDGET = 500 * 1000000L; // 500 ms to find all suggestions
+	
+	// a power of two, so the check is a mask; reading the clock this often costs nothing measurable
+	private static final int DEADLINE_CHECK_INTERVAL = 64;
+	
+	/**
+	 * Given a sequence of characters find the k valid words with the best scores, where
+	 * score = a . (msd / maxCost) - b . frequency
+	 * 
+	 * Nodes are expanded best first. Below a node the msd is never lower than the lowest cost in its row, and
+	 * the frequency never higher than the highest one among its words, which have consecutive hashes. Each
+	 * word is queued with its exact score, so once k words are taken from the queue no other word can beat them.
+	 * 
+	 * @param deadline the System.nanoTime() at which the search stops
+	 * @param results receives the words with their msd, best first
+	 * @return true if the best k words were found (or there are fewer words within maxCost), false if the 
+	 * deadline stopped the search
+	 */
+	public boolean searchBestMSD(String transWord, int maxCost, float insertionCost, float substitutionCost, 
+			  float omissionCost, Distance distance, FrequencyTable frequencies, float a, float b, int k, 
+			  long deadline, SuggestionCollector results)
+	{
+		return searchBestMSD(new MSDQuery(transWord, insertionCost, substitutionCost, omissionCost, distance), 
+				maxCost, frequencies, a, b, k, deadline, results);
+	}
+	
+	/**
+	 * Same as {@link #searchBestMSD(String, int, float, float, float, Distance, FrequencyTable, float, float, 
+	 * int, long, SuggestionCollector)} for a word already compiled into a query.
+	 */
+	public boolean searchBestMSD(MSDQuery query, int maxCost, FrequencyTable frequencies, float a, float b, 
+			int k, long deadline, SuggestionCollector results)
+	{
+		int columns = query.columns;
 		
-		// thread to control time to search for suggestions
-		mAreTimeAvailable = true;
-		mTimerTask = new TimerTask() {
-			
-			@Override
-			public void run() {
-				//Log.v(BrailleSpellCheckerService.TAG, "Search Interrupted!");
-				mAreTimeAvailable = false;
-			}
-		};
-		mTimer = new Timer();
-		mTimer.schedule(mTimerTask, 500); //500 ms to find all suggestions
-	  
-		while (!stack.empty () && mAreTimeAvailable)
+		// the root entry, with the first row
+		mEntryCount = 0;
+		mEntryColumns = columns;
+		int root = newEntry(0, -1, 0, 0);
+		query.firstRow(mEntryRows, 0);
+		
+		// words are queued as the complement of their entry, nodes as the entry itself
+		IntPriorityQueue queue = mQueue;
+		queue.clear();
+		queue.push(Float.NEGATIVE_INFINITY, root);
+		
+		int found = 0;
+		int expanded = 0;
+		
+		while (!queue.empty())
 		{
-			StackLevenshteinEntry entry = stack.pop ();
-			List<Float> previousRow = entry.previousRow;
-		  
-			int columns = entry.chars.length + 1;
-			List<Float> currentRow = new LinkedList<Float>(); currentRow.add(previousRow.get(0) + omissionCost);
-		  
-			// build one row for the letter, with a column for each letter in the target word, 
-			// plus one for the empty string at column 0
-			for(int column = 1; column < columns; column++)
+			if((++expanded & (DEADLINE_CHECK_INTERVAL - 1)) == 0 && System.nanoTime() - deadline >= 0)
+				return false;
+			
+			int entry = queue.pop();
+			if(entry < 0)
 			{
-				// cost * braille_distance
-				float insertCost = currentRow.get(column - 1) + insertionCost;// * 
-						//getInsertionDistance(entry.chars, column-1, getChar(entry.node));
-				float omitCost = previousRow.get(column) + omissionCost;
-				float substituteCost = previousRow.get(column - 1);
-			  
-				if(entry.chars[column - 1] != getChar(entry.node))
-					substituteCost += substitutionCost * distance.getDistance(entry.chars[column - 1], 
-							getChar(entry.node));
-			  
-				currentRow.add(Math.min(insertCost, Math.min(omitCost, substituteCost)));
+				// no node left in the queue can lead to a better word
+				entry = ~entry;
+				int length = mEntryDepth[entry];
+				results.collect(entryWord(entry), length, mEntryRows[entry * columns + columns - 1], 
+						mEntryHash[entry] + 1);
+				if(++found == k) return true;
+				continue;
 			}
-		  
-			// if last entry in the row indicates the optimal cost is less than the maximum cost,
-			// and there is a word in this node, then add it.
-			int last = currentRow.size() - 1;
-			if(currentRow.get(last) <= maxCost && canTerminate(entry.node))
+			
+			int node = mEntryNode[entry];
+			int depth = mEntryDepth[entry];
+			int hash = mEntryHash[entry];
+			
+			if(entry != root && isTerminal(node))
 			{
-				results.add(new SuggestionResult(entry.subword, currentRow.get(last)));
+				// the word's hash follows the hashes of everything before it in the dawg
+				hash += 1;
+				float last = mEntryRows[entry * columns + columns - 1];
+				if(last <= maxCost)
+					queue.push(a * (last / maxCost) - b * frequencies.get(hash), ~entry);
 			}
-		  
-			// if any entries in the row are less than the maximum cost, then iteratively search each branch
-			if(min(currentRow) <= maxCost)
+			
+			int first = firstChild(node);
+			int end = first + childCount(node);
+			for(int child = first; child < end; child++)
 			{
-				for (Iterator<Long> iter = childIterator (entry.node); iter.hasNext ();)
+				char c = charOf(child);
+				int wordCount = wordCount(child);
+				int next = newEntry(child, entry, depth + 1, hash);
+				hash += wordCount;
+				
+				// entries may have been reallocated, so the slab is read after newEntry
+				float rowMin = query.row(mEntryRows, entry * columns, next * columns, c);
+				
+				if(rowMin <= maxCost)
 				{
-					// get child
-					long child = iter.next ();
-			  
-					// build subword
-					StackLevenshteinEntry nextEntry = new StackLevenshteinEntry (child, entry.chars, 
-							entry.subword + getChar(child), currentRow);
-			  
-					// search that branch
-					stack.push(nextEntry);
+					int from = mEntryHash[next] + 1;
+					queue.push(a * (rowMin / maxCost) - b * frequencies.max(from, from + wordCount), next);
+				}
+				else
+				{
+					// nothing below this child, reuse its entry
+					mEntryCount--;
 				}
 			}
 		}
-
-		mTimer.cancel();
 		
-		// return list of results
-		return results;
-  	}
+		return true;
+	}
+	
+	/*
+	 * Best-first entries: a node reached by a path, kept in parallel arrays with its row in a slab. Entries
+	 * point to the parent entry, so paths are only spelled out for the words taken from the queue.
+	 */
+	private int mEntryCount = 0;
+	private int mEntryColumns = 0;
+	private int[] mEntryNode = new int[256];
+	private int[] mEntryParent = new int[256];
+	private int[] mEntryDepth = new int[256];
+	private int[] mEntryHash = new int[256];
+	private float[] mEntryRows = new float[256 * MAX_EXPECTED_DEPTH];
+	private final IntPriorityQueue mQueue = new IntPriorityQueue();
+	
+	/*
+	 * hash is the count of words before the node in the dawg, not counting the node itself
+	 */
+	private int newEntry(int node, int parent, int depth, int hash)
+	{
+		int entry = mEntryCount++;
+		if(entry == mEntryNode.length)
+		{
+			mEntryNode = Arrays.copyOf(mEntryNode, entry * 2);
+			mEntryParent = Arrays.copyOf(mEntryParent, entry * 2);
+			mEntryDepth = Arrays.copyOf(mEntryDepth, entry * 2);
+			mEntryHash = Arrays.copyOf(mEntryHash, entry * 2);
+		}
+		if((entry + 1) * mEntryColumns > mEntryRows.length)
+			mEntryRows = Arrays.copyOf(mEntryRows, Math.max((entry + 1) * mEntryColumns, mEntryRows.length * 2));
+		
+		mEntryNode[entry] = node;
+		mEntryParent[entry] = parent;
+		mEntryDepth[entry] = depth;
+		mEntryHash[entry] = hash;
+		return entry;
+	}
+	
+	private char[] entryWord(int entry)
+	{
+		int length = mEntryDepth[entry];
+		char[] word = path(length);
+		for(int i = length - 1; i >= 0; i--)
+		{
+			word[i] = charOf(mEntryNode[entry]);
+			entry = mEntryParent[entry];
+		}
+		return word;
+	}
+	
+	/*
+	 * Levenshtein rows are pooled in a single slab indexed by trie depth. A depth-first walk only ever
+	 * needs the rows of the current path, so row d can be overwritten as soon as a sibling is popped.
+	 */
+	private float[] mRows = new float[0];
+	private int mRowWidth = 0;
+	
+	private void prepareRows(int width)
+	{
+		mRowWidth = width;
+		rowOffset(MAX_EXPECTED_DEPTH);
+	}
+	
+	private int rowOffset(int depth)
+	{
+		int end = (depth + 1) * mRowWidth;
+		if(end > mRows.length)
+			mRows = Arrays.copyOf(mRows, Math.max(end, mRows.length * 2));
+		return depth * mRowWidth;
+	}
+	
+	private static final int MAX_EXPECTED_DEPTH = 32;
+	
+	/*
+	 * Depth-first traversal state shared by the searches: an explicit stack of node offsets with their
+	 * depths, and a single buffer with the characters of the path from the root to the current node.
+	 */
+	private final IntStack mNodeStack = new IntStack();
+	private final IntStack mDepthStack = new IntStack();
+	private final IntStack mHashStack = new IntStack();
+	private final IntStack mStateStack = new IntStack();
+	private char[] mPath = new char[MAX_EXPECTED_DEPTH];
+	
+	private void pushChildren(int parent, int depth)
+	{
+		int first = firstChild(parent);
+		int end = first + childCount(parent);
+		for(int child = first; child < end; child++)
+		{
+			mNodeStack.push(child);
+			mDepthStack.push(depth);
+		}
+	}
+	
+	/*
+	 * hash is the count of words up to the parent, the parent included, and state the parent's automaton state
+	 */
+	private void pushChildren(int parent, int depth, int hash, int state)
+	{
+		int first = firstChild(parent);
+		int end = first + childCount(parent);
+		for(int child = first; child < end; child++)
+		{
+			mNodeStack.push(child);
+			mDepthStack.push(depth);
+			mHashStack.push(hash);
+			mStateStack.push(state);
+			hash += wordCount(child);
+		}
+	}
+	
+	private char[] path(int length)
+	{
+		if(length > mPath.length)
+			mPath = Arrays.copyOf(mPath, Math.max(length, mPath.length * 2));
+		return mPath;
+	}
 	
 	// not being used. performance trade-off its not worth it
 	@SuppressWarnings("unused")
@@ -392,30 +1022,24 @@ public class MAFSA
 	
 	
 	  
-	  private float min(List<Float> l)
-	  {
-		  float min = Float.MAX_VALUE;
-		  for(float d : l)
-			  if(d < min) min = d;
-		  return min;
-	  }
-	  
-	  private List<Float> range(int n)
-	  {
-		  List<Float> list = new LinkedList<Float>();
-		  for(int i = 0; i < n; i++) list.add((float) i);
-		  return list;
-	  }
-	  
 	  public class SuggestionResult
 	  {
 		  public final String suggestion;
 		  public float msdScore;
+		  
+		  // hash of the suggestion in the dawg, -1 if unknown
+		  public final int hash;
 
 		  public SuggestionResult (String suggestion, float score)
+		  {
+			  this (suggestion, score, -1);
+		  }
+		  
+		  public SuggestionResult (String suggestion, float score, int hash)
 		  {
 			  this.suggestion = suggestion;
 			  this.msdScore = score;
+			  this.hash = hash;
 		  }
 	  }
 	  
@@ -434,86 +1058,128 @@ public class MAFSA
 		  return words;
 	  }
 	  
-	  private class StackEntry
-	  {
-		  public final long node; // the current node to examine
-		  public final char[] chars; // the available letters for word building
-		  public final String subword; // the word path so far
-		  
-		  public StackEntry (long node, char[] chars, String subword)
-		  {
-			  this.node = node;             // the current node to examine
-			  this.chars = chars.clone ();  // the available letters for word building
-			  this.subword = subword;       // the letter path so far
-		  }
-	  }
-	  
-	  private class StackLevenshteinEntry extends StackEntry
-	  {
-		  public final List<Float> previousRow;
-		  
-		  public StackLevenshteinEntry (long node, char[] chars, String subword, List<Float> previousRow)
-		  {
-			  super(node, chars, subword);      
-			  this.previousRow = previousRow; // previous row of MSD matrix
-		  }
-	  }
-  
-	/* PROTECTED METHODS */
-  
-	protected ChildIterator childIterator (long parent)
+	/* CHILD ACCESS */
+	
+	/*
+	 * Children of a node are stored as a run of consecutive nodes sorted by character, the last one
+	 * flagged. The length of every run is counted once at load time so lookups can binary search the
+	 * run straight on the nodes array. Nodes are addressed by offset, the root being offset 0, in either
+	 * version of the binary format.
+	 */
+	private static final int LONG_RUN = 0xFF;
+
+	/**
+	 * Returns the offset of the first child of a node.
+	 *
+	 * @param node the offset of the parent node
+	 * @return the offset of its first child, or -1 if the node has no children
+	 */
+	public int firstChild (int node)
 	{
-		return new ChildIterator (parent);
-	} 
+		return null != nodes ? getFirstChildIndex (nodes.get (node)) : firstChildren.get (node);
+	}
 
-	protected class ChildIterator implements Iterator<Long>
+	/**
+	 * Returns the number of children of a node. Children are found at offsets firstChild (node) to
+	 * firstChild (node) + childCount (node) - 1.
+	 *
+	 * @param node the offset of the parent node
+	 * @return the number of children
+	 */
+	public int childCount (int node)
 	{
-		int childIndex;
-		long child;
-    
-		private ChildIterator (long parent)
-		{
-			childIndex = getFirstChildIndex (parent);
-		}
-    
-		public boolean hasNext ()
-		{
-			if (-1 == childIndex)
-				return false;
+		int first = firstChild (node);
+		if (-1 == first)
+			return 0;
 
-			if (isLastChild (child))
-				return false;
+		int count = childCounts.get (first) & 0xFF;
+		if (count < LONG_RUN)
+			return count;
 
-			return true;
-		}
+		// runs too long to be counted in a byte are measured on the last child flag
+		int last = first + LONG_RUN - 1;
+		while (!isLastChild (last))
+			last++;
+		return last - first + 1;
+	}
+
+	/**
+	 * Finds the child of a node that holds a given character.
+	 *
+	 * @param node the offset of the parent node
+	 * @param c the character to look for
+	 * @return the offset of the child, or -1 if there is none
+	 */
+	public int findChild (int node, char c)
+	{
+		int low = firstChild (node);
+		if (-1 == low)
+			return -1;
 
-		public Long next ()
+		int high = low + childCount (node) - 1;
+		while (low <= high)
 		{
-			if (!hasNext ())
-				throw new NoSuchElementException ();
+			int middle = (low + high) >>> 1;
+			char value = charOf (middle);
 
-			return (child = nodes[childIndex++]);
+			if (value < c)
+				low = middle + 1;
+			else if (value > c)
+				high = middle - 1;
+			else
+				return middle;
 		}
 
-		public void remove ()
-		{
-			throw new UnsupportedOperationException ("You may not remove children from this structure");
-		}
+		return -1;
+	}
+
+	/**
+	 * Returns the character of a node.
+	 */
+	public char charOf (int node)
+	{
+		return null != nodes ? getChar (nodes.get (node)) : chars.get (node);
+	}
+
+	/**
+	 * Tells whether the path to a node spells a word.
+	 */
+	public boolean isTerminal (int node)
+	{
+		return null != nodes ? canTerminate (nodes.get (node)) : 0 != (flags.get (node) & TERMINAL_FLAG);
 	}
 
-	protected Long findChild (long node, char c)
+	/**
+	 * Returns the number of words at and below a node, the node's share of the minimal perfect hash.
+	 */
+	public int wordCount (int node)
 	{
-		for (Iterator<Long> iter = childIterator (node); iter.hasNext ();)
+		return null != nodes ? getMPH (nodes.get (node)) : wordCounts.get (node);
+	}
+
+	private boolean isLastChild (int node)
+	{
+		return null != nodes ? isLastChild (nodes.get (node)) : 0 != (flags.get (node) & LAST_CHILD_FLAG);
+	}
+
+	private byte[] countChildren ()
+	{
+		int n = nodeCount ();
+		byte[] counts = new byte[n];
+
+		for (int node = 0; node < n; node++)
 		{
-			long child = iter.next ();
+			int first = firstChild (node);
+			if (-1 == first || 0 != counts[first])
+				continue;
 
-			if (getChar (child) == c)
-				return child;
-			else if(getChar(child) > c) // children are ordered
-				return (long) -1;
+			int count = 1;
+			while (!isLastChild (first + count - 1) && count < LONG_RUN)
+				count++;
+			counts[first] = (byte) count;
 		}
 
-		return (long) -1;
+		return counts;
 	}
 
 	private static int getFirstChildIndex (long node)
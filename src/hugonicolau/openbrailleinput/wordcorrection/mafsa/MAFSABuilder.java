@@ -0,0 +1,322 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+
+package hugonicolau.openbrailleinput.wordcorrection.mafsa;
+
+import java.util.Arrays;
+
+/**
+ * Builds a MAFSA from words added in order, minimizing it as they come (Daciuk et al., "Incremental
+ * Construction of Minimal Acyclic Finite-State Automata", 2000).  Only the path of the last word is kept
+ * open: once a word that doesn't extend a node is added, the node can't change anymore and its children
+ * are written as a run of nodes, or replaced by an equal run written before.  Memory grows with the size
+ * of the minimal automaton, not with the number of words.
+ *
+ * A run only describes the children of a node, their characters, terminal flags, runs and word counts, so
+ * nodes with the same children share a run whether they are terminal or not.
+ *
+ * Words must be added spelled as in the dawg, in upper case, and sorted by String.compareTo, the order of
+ * their hashes.  The frequency of the n-th distinct word is stored at index n, aligned with its hash.
+ *
+ * Nodes are kept one array per field, as in version 2 of the binary format.  The dawg is built in version 1
+ * if Node.toLong () can encode it, in version 2 otherwise.
+ */
+public class MAFSABuilder
+{
+  // the largest version 2 dawg whose file can be mapped in one buffer
+  private static final int MAX_NODES = (Integer.MAX_VALUE - 16) / 12;
+  private static final int MAX_WORDS = Integer.MAX_VALUE - 1;
+
+  // the nodes written, node 0 being the root, whose run is written last
+  private int[] firstChildren = new int[1024];
+  private int[] wordCounts = new int[1024];
+  private char[] chars = new char[1024];
+  private byte[] flags = new byte[1024];
+  private int nodeCount = 1;
+
+  // runs written, by offset + 1, found by the hash of their nodes; 0 is an empty slot
+  private int[] register = new int[1024];
+  private int registered = 0;
+
+  // the open path, one state per character of the last word plus the root: its character, whether it is
+  // terminal, its word count so far and where its closed children start on the pending stack
+  private char[] labels = new char[32];
+  private boolean[] terminals = new boolean[32];
+  private int[] counts = new int[32];
+  private int[] starts = new int[32];
+
+  // the closed children of the open states, deeper states on top
+  private int[] pendingFirstChildren = new int[64];
+  private int[] pendingWordCounts = new int[64];
+  private char[] pendingChars = new char[64];
+  private byte[] pendingFlags = new byte[64];
+  private int pending = 0;
+
+  private String last = null;
+  private int wordCount = 0;
+  private float[] frequencies = new float[1024];
+  private boolean built = false;
+
+  /**
+   * Returns the number of distinct words added.
+   */
+  public int wordCount ()
+  {
+    return wordCount;
+  }
+
+  /**
+   * Returns the number of nodes written so far, the root included.
+   */
+  public int nodeCount ()
+  {
+    return nodeCount;
+  }
+
+  public void add (String word)
+  {
+    add (word, 0);
+  }
+
+  /**
+   * Adds a word.  A word equal to the last one keeps the highest of their frequencies.
+   *
+   * @param word the word, in upper case
+   * @param frequency the frequency of the word
+   * @throws IllegalArgumentException if the word is empty or sorts before the last one
+   * @throws IllegalStateException if the dictionary outgrows the binary format, or after build ()
+   */
+  public void add (String word, float frequency)
+  {
+    if (built)
+      throw new IllegalStateException ("MAFSA already built");
+    if (word.length () == 0)
+      throw new IllegalArgumentException ("Empty word");
+
+    if (null != last)
+    {
+      int order = word.compareTo (last);
+      if (order < 0)
+        throw new IllegalArgumentException ("Words out of order: " + word + " after " + last);
+      if (0 == order)
+      {
+        frequencies[wordCount] = Math.max (frequencies[wordCount], frequency);
+        return;
+      }
+    }
+
+    if (wordCount == MAX_WORDS)
+      throw new IllegalStateException ("More than " + MAX_WORDS + " words");
+
+    // the nodes past the prefix shared with the last word are done
+    int prefix = 0;
+    if (null != last)
+    {
+      int length = Math.min (word.length (), last.length ());
+      while (prefix < length && word.charAt (prefix) == last.charAt (prefix))
+        prefix++;
+      close (prefix);
+    }
+
+    ensureDepth (word.length () + 1);
+    for (int depth = prefix + 1; depth <= word.length (); depth++)
+    {
+      labels[depth] = word.charAt (depth - 1);
+      terminals[depth] = false;
+      counts[depth] = 0;
+      starts[depth] = pending;
+    }
+    terminals[word.length ()] = true;
+    counts[word.length ()] = 1;
+
+    last = word;
+    wordCount++;
+    if (wordCount == frequencies.length)
+      frequencies = Arrays.copyOf (frequencies, wordCount * 2);
+    frequencies[wordCount] = frequency;
+  }
+
+  /**
+   * Closes the last word and returns the dawg.  No words can be added afterwards.
+   */
+  public MAFSA build ()
+  {
+    if (!built)
+    {
+      if (null != last)
+        close (0);
+      firstChildren[0] = write (0);
+      wordCounts[0] = wordCount;
+      built = true;
+    }
+
+    // every offset is below nodeCount
+    if (nodeCount - 1 <= Node.MAX_FIRST_CHILD && wordCount <= Node.MAX_MPH)
+    {
+      long[] nodes = new long[nodeCount];
+      for (int i = 0; i < nodeCount; i++)
+        nodes[i] = Node.toLong (firstChildren[i], 0 != (flags[i] & MAFSA.LAST_CHILD_FLAG),
+            0 != (flags[i] & MAFSA.TERMINAL_FLAG), chars[i], wordCounts[i]);
+      return new MAFSA (nodes);
+    }
+
+    return new MAFSA (Arrays.copyOf (firstChildren, nodeCount), Arrays.copyOf (wordCounts, nodeCount),
+        Arrays.copyOf (chars, nodeCount), Arrays.copyOf (flags, nodeCount));
+  }
+
+  /**
+   * Returns the frequencies of the words added, indexed by hash.  Index 0 holds no word.
+   */
+  public float[] frequencies ()
+  {
+    return Arrays.copyOf (frequencies, wordCount + 1);
+  }
+
+  /*
+   * Closes the open states deeper than a depth, deepest first, adding each to its parent's children
+   */
+  private void close (int depth)
+  {
+    for (int d = last.length (); d > depth; d--)
+    {
+      // the children of d are on top of the stack, and its parent's right below
+      int firstChild = write (d);
+      pending = starts[d];
+
+      if (pending == pendingChars.length)
+      {
+        int capacity = pending * 2;
+        pendingFirstChildren = Arrays.copyOf (pendingFirstChildren, capacity);
+        pendingWordCounts = Arrays.copyOf (pendingWordCounts, capacity);
+        pendingChars = Arrays.copyOf (pendingChars, capacity);
+        pendingFlags = Arrays.copyOf (pendingFlags, capacity);
+      }
+      pendingFirstChildren[pending] = firstChild;
+      pendingWordCounts[pending] = counts[d];
+      pendingChars[pending] = labels[d];
+      pendingFlags[pending] = terminals[d] ? MAFSA.TERMINAL_FLAG : 0;
+      pending++;
+
+      counts[d - 1] += counts[d];
+    }
+  }
+
+  /*
+   * Writes the children of an open state as a run, or finds an equal run, returning its offset or -1 if
+   * the state has no children
+   */
+  private int write (int depth)
+  {
+    int from = starts[depth];
+    int length = pending - from;
+    if (0 == length)
+      return -1;
+
+    pendingFlags[pending - 1] |= MAFSA.LAST_CHILD_FLAG;
+
+    int mask = register.length - 1;
+    for (int slot = hashPending (from, length) & mask; ; slot = (slot + 1) & mask)
+    {
+      int offset = register[slot] - 1;
+      if (offset < 0)
+      {
+        offset = append (from, length);
+        register[slot] = offset + 1;
+        if (++registered * 2 > register.length)
+          rehash ();
+        return offset;
+      }
+      if (equals (from, length, offset))
+        return offset;
+    }
+  }
+
+  private int append (int from, int length)
+  {
+    if (nodeCount > MAX_NODES - length)
+      throw new IllegalStateException ("More than " + MAX_NODES + " nodes");
+
+    if (nodeCount + length > chars.length)
+    {
+      int capacity = (int) Math.min (MAX_NODES, Math.max (chars.length * 2L, nodeCount + length));
+      firstChildren = Arrays.copyOf (firstChildren, capacity);
+      wordCounts = Arrays.copyOf (wordCounts, capacity);
+      chars = Arrays.copyOf (chars, capacity);
+      flags = Arrays.copyOf (flags, capacity);
+    }
+    System.arraycopy (pendingFirstChildren, from, firstChildren, nodeCount, length);
+    System.arraycopy (pendingWordCounts, from, wordCounts, nodeCount, length);
+    System.arraycopy (pendingChars, from, chars, nodeCount, length);
+    System.arraycopy (pendingFlags, from, flags, nodeCount, length);
+
+    int offset = nodeCount;
+    nodeCount += length;
+    return offset;
+  }
+
+  /*
+   * Only the last node of a run is flagged, so a run equal to the first nodes of a written one is that run
+   */
+  private boolean equals (int from, int length, int offset)
+  {
+    if (offset + length > nodeCount)
+      return false;
+
+    for (int i = 0; i < length; i++)
+      if (pendingChars[from + i] != chars[offset + i] || pendingFlags[from + i] != flags[offset + i]
+          || pendingFirstChildren[from + i] != firstChildren[offset + i]
+          || pendingWordCounts[from + i] != wordCounts[offset + i])
+        return false;
+    return true;
+  }
+
+  private void rehash ()
+  {
+    int[] old = register;
+    register = new int[old.length * 2];
+    int mask = register.length - 1;
+    for (int entry : old)
+    {
+      if (0 == entry)
+        continue;
+
+      int offset = entry - 1;
+      int length = 1;
+      while (0 == (flags[offset + length - 1] & MAFSA.LAST_CHILD_FLAG))
+        length++;
+
+      int slot = hash (firstChildren, wordCounts, chars, flags, offset, length) & mask;
+      while (0 != register[slot])
+        slot = (slot + 1) & mask;
+      register[slot] = entry;
+    }
+  }
+
+  private int hashPending (int from, int length)
+  {
+    return hash (pendingFirstChildren, pendingWordCounts, pendingChars, pendingFlags, from, length);
+  }
+
+  private static int hash (int[] firstChildren, int[] wordCounts, char[] chars, byte[] flags, int offset,
+      int length)
+  {
+    long h = length;
+    for (int i = offset; i < offset + length; i++)
+    {
+      h = h * 0x9E3779B97F4A7C15L + ((long) firstChildren[i] << 32 | (wordCounts[i] & 0xFFFFFFFFL));
+      h = h * 0x9E3779B97F4A7C15L + (chars[i] << 8 | flags[i]);
+    }
+    return (int) (h ^ (h >>> 32)) * 0x9E3779B1;
+  }
+
+  private void ensureDepth (int depth)
+  {
+    if (depth <= labels.length)
+      return;
+
+    int capacity = Math.max (depth, labels.length * 2);
+    labels = Arrays.copyOf (labels, capacity);
+    terminals = Arrays.copyOf (terminals, capacity);
+    counts = Arrays.copyOf (counts, capacity);
+    starts = Arrays.copyOf (starts, capacity);
+  }
+}
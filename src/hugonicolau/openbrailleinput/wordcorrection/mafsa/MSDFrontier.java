@@ -0,0 +1,293 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+
+package hugonicolau.openbrailleinput.wordcorrection.mafsa;
+
+import hugonicolau.openbrailleinput.wordcorrection.Distance;
+
+import java.util.Arrays;
+
+/**
+ * The MSD search of a word that is still being typed. Every dawg node the search has opened is kept with its
+ * costs, one column per typed character, so typing a character only adds a column to each node and opens the
+ * nodes that came within maxCost, and deleting one drops the last column. Collecting the words then finds
+ * exactly the words, msds and hashes MAFSA.searchMSD finds for the typed word.
+ *
+ * Nodes are kept in the order they were opened, parents before their children, and stay open until the
+ * frontier is cleared: a node opened for a longer word only costs some memory once the word is shortened.
+ */
+public class MSDFrontier
+{
+  private final MAFSA dawg;
+  private final float insertionCost;
+  private final float substitutionCost;
+  private final float omissionCost;
+  private final Distance distance;
+  private final int maxEntries;
+
+  // typed characters, upper case, and their slots
+  private char[] typed = new char[16];
+  private int[] typedSlots = new int[16];
+  private int length = 0;
+
+  // the nodes opened so far; entry 0 is the root
+  private int count = 0;
+  private int[] node = new int[256];
+  private int[] parent = new int[256];
+  private int[] hash = new int[256];
+  private char[] chars = new char[256];
+  private boolean[] expanded = new boolean[256];
+
+  // per column, the cost of each entry and the lowest cost of its row up to that column
+  private float[][] costs = new float[0][];
+  private float[][] mins = new float[0][];
+
+  private boolean overflowed = false;
+  private char[] word = new char[32];
+
+  /**
+   * @param maxEntries number of nodes the frontier may keep before it overflows
+   */
+  public MSDFrontier (MAFSA dawg, float insertionCost, float substitutionCost, float omissionCost,
+      Distance distance, int maxEntries)
+  {
+    this.dawg = dawg;
+    this.insertionCost = insertionCost;
+    this.substitutionCost = substitutionCost;
+    this.omissionCost = omissionCost;
+    this.distance = distance;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Returns the number of characters typed.
+   */
+  public int length ()
+  {
+    return length;
+  }
+
+  /**
+   * Returns a typed character, upper case.
+   */
+  public char charAt (int index)
+  {
+    return typed[index];
+  }
+
+  /**
+   * Tells whether the frontier outgrew maxEntries. It then only follows the typed characters until cleared.
+   */
+  public boolean overflowed ()
+  {
+    return overflowed;
+  }
+
+  /**
+   * Forgets the typed characters and the nodes opened for them.
+   */
+  public void clear ()
+  {
+    length = 0;
+    count = 0;
+    overflowed = false;
+  }
+
+  /**
+   * Adds a typed character.
+   *
+   * @param maxCost the maxCost of the word with the character
+   * @return false if the frontier overflowed
+   */
+  public boolean append (char c, int maxCost)
+  {
+    if (length == typed.length)
+    {
+      typed = Arrays.copyOf (typed, length * 2);
+      typedSlots = Arrays.copyOf (typedSlots, length * 2);
+    }
+    c = Character.toUpperCase (c);
+    typed[length] = c;
+    typedSlots[length] = distance.getSlot (c);
+
+    if (overflowed)
+    {
+      length++;
+      return false;
+    }
+
+    if (count == 0)
+    {
+      // the root, with the empty word
+      ensureColumns (1);
+      newEntry (0, -1, 0);
+      costs[0][0] = 0;
+      mins[0][0] = 0;
+      if (!expand (0, maxCost))
+      {
+        length++;
+        return false;
+      }
+    }
+
+    length++;
+    ensureColumns (length + 1);
+
+    // one more column for every node, parents first
+    float[] costs = this.costs[length];
+    float[] mins = this.mins[length];
+    costs[0] = length;
+    mins[0] = 0;
+    for (int entry = 1; entry < count; entry++)
+    {
+      costs[entry] = cost (entry, length);
+      mins[entry] = Math.min (this.mins[length - 1][entry], costs[entry]);
+    }
+
+    return expand (0, maxCost);
+  }
+
+  /**
+   * Removes the last typed character.
+   */
+  public void removeLast ()
+  {
+    if (length > 0)
+      length--;
+  }
+
+  /**
+   * Collects the words within maxCost of the typed characters.
+   */
+  public void collect (int maxCost, SuggestionCollector results)
+  {
+    if (count == 0)
+      return;
+
+    float[] costs = this.costs[length];
+    for (int entry = 1; entry < count; entry++)
+    {
+      if (costs[entry] <= maxCost && dawg.isTerminal (node[entry]))
+      {
+        int depth = 0;
+        for (int e = entry; e != 0; e = parent[e])
+          depth++;
+        if (depth > word.length)
+          word = new char[Math.max (depth, word.length * 2)];
+        int i = depth;
+        for (int e = entry; e != 0; e = parent[e])
+          word[--i] = chars[e];
+
+        results.collect (word, depth, costs[entry], hash[entry] + 1);
+      }
+    }
+  }
+
+  /*
+   * Opens the nodes within maxCost, from an entry on, that aren't open yet
+   */
+  private boolean expand (int from, int maxCost)
+  {
+    for (int entry = from; entry < count; entry++)
+    {
+      if (expanded[entry] || mins[length][entry] > maxCost)
+        continue;
+
+      expanded[entry] = true;
+      int first = dawg.firstChild (node[entry]);
+      int end = first + dawg.childCount (node[entry]);
+      if (count + end - first > maxEntries)
+      {
+        overflowed = true;
+        count = 0;
+        return false;
+      }
+
+      // hashes as MAFSA.searchMSD counts them
+      int h = hash[entry] + (entry != 0 && dawg.isTerminal (node[entry]) ? 1 : 0);
+      for (int child = first; child < end; child++)
+      {
+        int e = newEntry (child, entry, h);
+        h += dawg.wordCount (child);
+
+        // the whole row of a new node
+        costs[0][e] = costs[0][entry] + omissionCost;
+        mins[0][e] = costs[0][e];
+        for (int column = 1; column <= length; column++)
+        {
+          costs[column][e] = cost (e, column);
+          mins[column][e] = Math.min (mins[column - 1][e], costs[column][e]);
+        }
+      }
+    }
+    return true;
+  }
+
+  /*
+   * The cost of an entry at a column, from its cost at the previous column and its parent's
+   */
+  private float cost (int entry, int column)
+  {
+    int p = parent[entry];
+    float insertCost = costs[column - 1][entry] + insertionCost;
+    float omitCost = costs[column][p] + omissionCost;
+    float substituteCost = costs[column - 1][p] + substitution (column - 1, chars[entry]);
+    return Math.min (insertCost, Math.min (omitCost, substituteCost));
+  }
+
+  /*
+   * Same costs as MSDQuery
+   */
+  private float substitution (int index, char c)
+  {
+    int slot = distance.getSlot (c);
+    int typedSlot = typedSlots[index];
+    if (slot >= 0 && distance.getSlotDistance (slot, slot) == 0)
+      return substitutionCost * (typedSlot < 0 ? Integer.MAX_VALUE : distance.getSlotDistance (typedSlot, slot));
+
+    if (typed[index] == c)
+      return 0;
+    return substitutionCost * (typedSlot < 0 || slot < 0 ? Integer.MAX_VALUE
+        : distance.getSlotDistance (typedSlot, slot));
+  }
+
+  private int newEntry (int n, int p, int h)
+  {
+    if (count == node.length)
+    {
+      int capacity = count * 2;
+      node = Arrays.copyOf (node, capacity);
+      parent = Arrays.copyOf (parent, capacity);
+      hash = Arrays.copyOf (hash, capacity);
+      chars = Arrays.copyOf (chars, capacity);
+      expanded = Arrays.copyOf (expanded, capacity);
+      for (int column = 0; column < this.costs.length; column++)
+      {
+        this.costs[column] = Arrays.copyOf (this.costs[column], capacity);
+        this.mins[column] = Arrays.copyOf (this.mins[column], capacity);
+      }
+    }
+
+    int entry = count++;
+    node[entry] = n;
+    parent[entry] = p;
+    hash[entry] = h;
+    chars[entry] = p < 0 ? 0 : dawg.charOf (n);
+    expanded[entry] = false;
+    return entry;
+  }
+
+  private void ensureColumns (int columns)
+  {
+    if (columns <= costs.length)
+      return;
+
+    int from = costs.length;
+    costs = Arrays.copyOf (costs, columns);
+    mins = Arrays.copyOf (mins, columns);
+    for (int column = from; column < columns; column++)
+    {
+      costs[column] = new float[node.length];
+      mins[column] = new float[node.length];
+    }
+  }
+}
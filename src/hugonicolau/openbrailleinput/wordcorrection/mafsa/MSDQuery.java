@@ -0,0 +1,150 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+
+package hugonicolau.openbrailleinput.wordcorrection.mafsa;
+
+import hugonicolau.openbrailleinput.wordcorrection.Distance;
+
+/**
+ * A word compiled for the MSD searches. The substitution cost of every character slot against every
+ * character of the word is computed once, weight included, so filling a row reads one contiguous cost
+ * vector for the node's character instead of asking the distance for each column.
+ */
+public class MSDQuery
+{
+  final char[] chars;
+  final int columns;
+
+  final float insertionCost;
+  final float omissionCost;
+  final float substitutionCost;
+  final Distance distance;
+
+  final int[] slots;
+
+  // one vector of chars.length costs per slot, then one for characters computed on demand
+  private final float[] costs;
+  private final boolean[] bySlot;
+  private final int scratch;
+
+  public MSDQuery (String word, float insertionCost, float substitutionCost, float omissionCost, 
+      Distance distance)
+  {
+    this.chars = word.toUpperCase ().toCharArray ();
+    this.columns = chars.length + 1;
+    this.insertionCost = insertionCost;
+    this.omissionCost = omissionCost;
+    this.substitutionCost = substitutionCost;
+    this.distance = distance;
+
+    int length = chars.length;
+    int slotCount = distance.getSlotCount ();
+    this.slots = new int[length];
+    for (int i = 0; i < length; i++)
+      this.slots[i] = distance.getSlot (chars[i]);
+
+    costs = new float[(slotCount + 1) * length];
+    scratch = slotCount * length;
+    bySlot = new boolean[slotCount];
+    for (int slot = 0; slot < slotCount; slot++)
+    {
+      // equal characters cost nothing; a slot vector stands for all its characters only if the distance 
+      // from the slot to itself is 0 too
+      bySlot[slot] = distance.getSlotDistance (slot, slot) == 0;
+      for (int i = 0; i < length; i++)
+        costs[slot * length + i] = substitutionCost * distance (this.slots[i], slot);
+    }
+  }
+
+  /**
+   * Returns the number of columns in a row, one more than the length of the word.
+   */
+  public int columns ()
+  {
+    return columns;
+  }
+
+  /**
+   * Fills the first row, the cost of reaching each prefix of the word from the empty string.
+   */
+  public void firstRow (float[] rows, int offset)
+  {
+    for (int column = 0; column < columns; column++)
+      rows[offset + column] = column;
+  }
+
+  /**
+   * Fills the row of a node from the row of its parent.
+   * 
+   * @return the lowest cost in the row
+   */
+  public float row (float[] rows, int previous, int current, char c)
+  {
+    float[] costs = this.costs;
+    int vector = vector (c);
+    float insertionCost = this.insertionCost;
+    float omissionCost = this.omissionCost;
+
+    float cost = rows[previous] + omissionCost;
+    rows[current] = cost;
+    float rowMin = cost;
+
+    for (int column = 1; column < columns; column++)
+    {
+      float insertCost = cost + insertionCost;
+      float omitCost = rows[previous + column] + omissionCost;
+      float substituteCost = rows[previous + column - 1] + costs[vector + column - 1];
+
+      cost = Math.min (insertCost, Math.min (omitCost, substituteCost));
+      rows[current + column] = cost;
+      if (cost < rowMin) rowMin = cost;
+    }
+
+    return rowMin;
+  }
+
+  /**
+   * Returns the msd of one word, spelled as in the dawg, as a search along its path computes it.
+   */
+  public float msd (String word)
+  {
+    return msd (word, Float.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Returns the msd of one word as msd (word) does, or Float.POSITIVE_INFINITY as soon as no row can lead
+   * to an msd within maxCost.
+   */
+  public float msd (String word, float maxCost)
+  {
+    float[] rows = new float[2 * columns];
+    firstRow (rows, 0);
+    int previous = 0;
+    for (int i = 0; i < word.length (); i++)
+    {
+      int current = columns - previous;
+      if (row (rows, previous, current, word.charAt (i)) > maxCost)
+        return Float.POSITIVE_INFINITY;
+      previous = current;
+    }
+    return rows[previous + columns - 1];
+  }
+
+  private int vector (char c)
+  {
+    int slot = distance.getSlot (c);
+    if (slot >= 0 && bySlot[slot])
+      return slot * chars.length;
+
+    // computed for this character, as the searches did for every column
+    int length = chars.length;
+    for (int i = 0; i < length; i++)
+      costs[scratch + i] = chars[i] == c ? 0 : substitutionCost * distance (slots[i], slot);
+    return scratch;
+  }
+
+  private int distance (int slot1, int slot2)
+  {
+    if (slot1 < 0 || slot2 < 0) return Integer.MAX_VALUE;
+    return distance.getSlotDistance (slot1, slot2);
+  }
+}
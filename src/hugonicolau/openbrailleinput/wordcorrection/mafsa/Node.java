@@ -114,23 +114,44 @@ class Node
    * 
    * 64 bit node
    * 
-   * 22 bits	: next children									MAX: 4.194.304 nodes
+   * 22 bits	: next children, signed for -1					MAX: 2.097.152 nodes
    * 1 	bit		: last child flag
    * 1 	bit		: terminal node flag
    * 16	bits	: character
-   * 24	bits	: node number (used to calculate hash value)	MAX: 16.777.216 words
+   * 24	bits	: node number (used to calculate hash value)	MAX: 16.777.215 words
+   * 
+   * Larger dawgs are stored in version 2 of the binary format (see MAFSA).
    */
+  static final int MAX_FIRST_CHILD = (1 << 21) - 1;
+  static final int MAX_MPH = 0xFFFFFF;
+
   public long toLong ()
   {
-    long rv;
+    int firstChild;
     
     // start with the first child index.  use MAX_INDEX, if there are no children
     if (nextChildren.isEmpty ())
       if (null == child)
-        rv = -1;
-      else rv = child.index;
-    else rv = nextChildren.get (0).index;
+        firstChild = -1;
+      else firstChild = child.index;
+    else firstChild = nextChildren.get (0).index;
+
+    return toLong (firstChild, lastChild, terminal, value, mph);
+  }
 
+  /*
+   * Encodes a node from its fields, as toLong () does.  Used by MAFSABuilder, which keeps no Node objects.
+   */
+  static long toLong (int firstChild, boolean lastChild, boolean terminal, char value, int mph)
+  {
+    // out of range fields would spill into the others
+    if (firstChild < -1 || firstChild > MAX_FIRST_CHILD)
+      throw new IllegalArgumentException ("First child " + firstChild + " doesn't fit in 22 bits");
+    if (mph < 0 || mph > MAX_MPH)
+      throw new IllegalArgumentException ("Word count " + mph + " doesn't fit in 24 bits");
+    
+    long rv = firstChild;
+    
     // shift 1 and add the last child bit
     rv = (rv << 1) | (lastChild ? 0x1 : 0x0);
     // shift 1 and add the terminal bit
@@ -2,46 +2,66 @@
 
 package hugonicolau.openbrailleinput.wordcorrection.mafsa;
 
+import java.util.Arrays;
 import java.util.EmptyStackException;
-import java.util.LinkedList;
 
 public class Stack<E>
 {
-  private final LinkedList<E> entries;
+  private Object[] entries;
+  private int size = 0;
 
   public Stack ()
   {
-    entries = new LinkedList<E> ();
+    this (16);
+  }
+
+  public Stack (int capacity)
+  {
+    entries = new Object[Math.max (1, capacity)];
   }
 
   public boolean empty ()
   {
-    return entries.isEmpty ();
+    return 0 == size;
   }
 
-  public E peek ()
+  public int size ()
   {
-    int size = entries.size ();
+    return size;
+  }
 
+  @SuppressWarnings ("unchecked")
+  public E peek ()
+  {
     if (size <= 0)
       throw new EmptyStackException ();
 
-    return entries.get (size - 1);
+    return (E) entries[size - 1];
   }
 
+  @SuppressWarnings ("unchecked")
   public E pop ()
   {
-    int size = entries.size ();
-
     if (size <= 0)
       throw new EmptyStackException ();
 
-    return entries.remove (size - 1);
+    E entry = (E) entries[--size];
+    entries[size] = null; // let go of the reference
+    return entry;
   }
 
   public E push (E entry)
   {
-    entries.add (entry);
+    if (size == entries.length)
+      entries = Arrays.copyOf (entries, size * 2);
+
+    entries[size++] = entry;
     return entry;
   }
+
+  public void clear ()
+  {
+    Arrays.fill (entries, 0, size, null);
+    size = 0;
+  }
 }
@@ -0,0 +1,18 @@
+// LICENSE: GPLv3. http://www.gnu.org/licenses/gpl-3.0.txt
+
+package hugonicolau.openbrailleinput.wordcorrection.mafsa;
+
+/**
+ * Receives the words found by a search as they are found. The word is only valid during the call, the
+ * characters are a buffer the search keeps reusing, so collectors copy the words they keep.
+ */
+public interface SuggestionCollector
+{
+  /**
+   * @param word buffer with the characters of the word, as stored in the dawg
+   * @param length length of the word
+   * @param msd the minimum string distance between the word and the searched one
+   * @param hash the hash of the word, as returned by MAFSA.wordToHash
+   */
+  void collect (char[] word, int length, float msd, int hash);
+}